@@ -1,13 +1,28 @@
 package webpatterns.controllers;
 
 
+import lombok.RequiredArgsConstructor;
 import org.springframework.stereotype.Controller;
+import org.springframework.ui.Model;
 import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.RequestParam;
+import webpatterns.model.BlogEntry;
+import webpatterns.persistence.BlogEntryDao;
+
+import java.util.ArrayList;
 
 @Controller
+@RequiredArgsConstructor
 public class IndexController {
+    private static final int ENTRIES_PER_PAGE = 10;
+
+    private final BlogEntryDao blogEntryDao;
+
     @GetMapping
-    public String home(){ return "index";}
+    public String home(Model model){
+        addBlogEntryPage(model, Integer.MAX_VALUE);
+        return "index";
+    }
     @GetMapping("/messages_index")
     public String messageIndex(){ return "messages_index;";}
     @GetMapping("/users_index")
@@ -15,7 +30,33 @@ public class IndexController {
     @GetMapping("friends_index")
     public String friendsIndex(){return "friends_index";}
     @GetMapping("blogentries_index")
-    public String blogentriesIndex(){return "blogentriesIndex";}
+    public String blogentriesIndex(@RequestParam(name = "before", defaultValue = "" + Integer.MAX_VALUE) int before,
+                                   Model model){
+        addBlogEntryPage(model, before);
+        return "blogentries";
+    }
+    @GetMapping("blogentries_search")
+    public String blogentriesSearch(@RequestParam(name = "q", defaultValue = "") String query,
+                                    @RequestParam(name = "page", defaultValue = "0") int page,
+                                    Model model){
+        page = Math.max(page, 0);
+        ArrayList<BlogEntry> entries = blogEntryDao.searchBlogEntries(query, page, ENTRIES_PER_PAGE);
+        model.addAttribute("query", query);
+        model.addAttribute("entries", entries);
+        if (entries.size() == ENTRIES_PER_PAGE) {
+            model.addAttribute("nextPage", page + 1);
+        }
+        return "blogentries";
+    }
 
+    // Add one page of the blog feed to the model, along with the cursor for the next page
+    // (only set if this page was full, so there may be more)
+    private void addBlogEntryPage(Model model, int before) {
+        ArrayList<BlogEntry> entries = blogEntryDao.findBlogEntriesBefore(before, ENTRIES_PER_PAGE);
+        model.addAttribute("entries", entries);
+        if (entries.size() == ENTRIES_PER_PAGE) {
+            model.addAttribute("nextBefore", entries.get(entries.size() - 1).getEntryId());
+        }
+    }
 
 }
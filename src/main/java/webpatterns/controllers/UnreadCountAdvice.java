@@ -0,0 +1,23 @@
+package webpatterns.controllers;
+
+import lombok.RequiredArgsConstructor;
+import org.springframework.web.bind.annotation.ControllerAdvice;
+import org.springframework.web.bind.annotation.ModelAttribute;
+import org.springframework.web.bind.annotation.SessionAttribute;
+import webpatterns.model.User;
+import webpatterns.persistence.MessageDao;
+
+// Supplies the unread message count shown in the menu bar on every page
+@ControllerAdvice
+@RequiredArgsConstructor
+public class UnreadCountAdvice {
+    private final MessageDao messageDao;
+
+    @ModelAttribute("unreadCount")
+    public Integer unreadCount(@SessionAttribute(name = "loggedInUser", required = false) User loggedInUser) {
+        if (loggedInUser == null) {
+            return null;
+        }
+        return messageDao.getUnreadCount(loggedInUser.getUsername());
+    }
+}
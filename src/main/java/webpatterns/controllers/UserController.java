@@ -1,6 +1,7 @@
 package webpatterns.controllers;
 
 import jakarta.servlet.http.HttpSession;
+import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.stereotype.Controller;
 import org.springframework.ui.Model;
@@ -8,11 +9,12 @@ import org.springframework.web.bind.annotation.PostMapping;
 import org.springframework.web.bind.annotation.RequestParam;
 import webpatterns.model.User;
 import webpatterns.persistence.UserDao;
-import webpatterns.persistence.UserDaoImpl;
 
 @Slf4j
 @Controller
+@RequiredArgsConstructor
 public class UserController {
+    private final UserDao userDao;
 
     @PostMapping("registerUser")
     public String registerUser(
@@ -23,7 +25,6 @@ public class UserController {
             @RequestParam(name = "isAdmin") boolean isAdmin,
             Model model, HttpSession session) {
         String view = "";
-        UserDao userDao = new UserDaoImpl("database.properties");
         User u = new User(username, password, firstName, lastName, isAdmin);
         boolean isAdded = userDao.addUser(u);
         if (isAdded) {
@@ -47,7 +48,6 @@ public class UserController {
             return "error";
         }
 
-        UserDao userDao = new UserDaoImpl("database.properties");
         User u = userDao.login(username, password);
 
         if (u == null) {
@@ -34,7 +34,7 @@ import java.util.Date;
 */
 @Getter
 @EqualsAndHashCode(onlyExplicitlyIncluded = true)
-@Builder
+@Builder(toBuilder = true)
 @AllArgsConstructor
 public class Message implements Comparable<Message>{
     // Formatter used by toString - can be shared by ALL Message objects
@@ -0,0 +1,30 @@
+package webpatterns.model;
+
+import lombok.AllArgsConstructor;
+import lombok.Builder;
+import lombok.EqualsAndHashCode;
+import lombok.Getter;
+import lombok.ToString;
+
+import java.time.LocalDateTime;
+
+/**
+ *
+ * The details of a <code>Message</code> needed to list it in a mailbox,
+ * without its body. Load the full <code>Message</code> (with
+ * <code>MessageDao.getMessageById</code>) when it is opened.
+ */
+@Getter
+@ToString
+@EqualsAndHashCode(onlyExplicitlyIncluded = true)
+@Builder(toBuilder = true)
+@AllArgsConstructor
+public class MessageSummary {
+    @EqualsAndHashCode.Include
+    private int messageID;
+    private String sender;
+    private String recipient;
+    private String subject;
+    private boolean readStatus;
+    private LocalDateTime timestamp;
+}
@@ -0,0 +1,69 @@
+package webpatterns.persistence;
+
+import lombok.ToString;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * The outcome of a batch write, row by row.
+ *
+ * Rows are identified by their position in the list passed to the batch
+ * method. Every row either has a key (the generated id, or whatever else
+ * identifies the stored row) or a failure reason, never both.
+ */
+@ToString
+public class BatchResult<K> {
+    private final List<K> keys;
+    private final Map<Integer, String> failures = new TreeMap<>();
+
+    BatchResult(int size) {
+        this.keys = new ArrayList<>(Collections.nCopies(size, null));
+    }
+
+    void succeeded(int row, K key) {
+        keys.set(row, key);
+    }
+
+    void failed(int row, String reason) {
+        keys.set(row, null);
+        failures.put(row, reason);
+    }
+
+    boolean hasFailed(int row) {
+        return failures.containsKey(row);
+    }
+
+    /**
+     * @return The key of each row, in the order the rows were passed in. A
+     *         row that failed has a null key.
+     */
+    public List<K> getKeys() {
+        return Collections.unmodifiableList(keys);
+    }
+
+    /**
+     * @return The key of one row, or null if that row failed.
+     */
+    public K getKey(int row) {
+        return keys.get(row);
+    }
+
+    /**
+     * @return The reason each failed row failed, keyed by its position.
+     */
+    public Map<Integer, String> getFailures() {
+        return Collections.unmodifiableMap(failures);
+    }
+
+    public int getSuccessCount() {
+        return keys.size() - failures.size();
+    }
+
+    public boolean hasFailures() {
+        return !failures.isEmpty();
+    }
+}
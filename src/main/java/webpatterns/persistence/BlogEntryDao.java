@@ -5,6 +5,8 @@ package webpatterns.persistence;
 import webpatterns.model.BlogEntry;
 
 import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.Stream;
 
 /**
  *
@@ -16,6 +18,11 @@ public interface BlogEntryDao
     // This will give back the id the new entry is inserted with if it's successful
     // If it's not successful, it will return -1.
     public int addBlogEntry(String username, String title, String content);
+
+    // Add many BlogEntries to the database using batched inserts (their entryIds are ignored)
+    // This will give back the outcome of each entry (by its position in the list):
+    // the id it was inserted with, or the reason it couldn't be added
+    public BatchResult<Integer> addBlogEntries(List<BlogEntry> entries);
     
     // Remove BlogEntry from the database
     // Returns 0 if the delete was unsuccessful and 1 if it was successful.
@@ -30,12 +37,29 @@ public interface BlogEntryDao
     public BlogEntry findBlogEntryByID(int id);
     
     // Find first BlogEntry with this title
-    // Returns the FIRST entry with this title in the database
+    // Returns the FIRST entry with this title in the database (the one with the lowest id)
     // If there are multiple matching entries, anything after the first title is ignored.
     public BlogEntry findBlogEntryByTitle(String searchTitle);
     
     // Find all BlogEntries
     // Returns an arraylist of all the entries in the database
     public ArrayList<BlogEntry> findAllBlogEntries();
+
+    // Find a page of BlogEntries, newest first
+    // Returns up to limit entries with an id lower than entryId (pass Integer.MAX_VALUE
+    // for the first page, then the id of the last entry on a page to get the next one)
+    public ArrayList<BlogEntry> findBlogEntriesBefore(int entryId, int limit);
+
+    // Stream all BlogEntries, newest first, without loading them all into memory
+    // The stream holds a database connection until it is closed, so close it when done
+    public Stream<BlogEntry> streamAllBlogEntries();
+
+    // Stream all BlogEntries written by that author, without loading them all into memory
+    // The stream holds a database connection until it is closed, so close it when done
+    public Stream<BlogEntry> streamBlogEntriesByAuthor(String author);
+
+    // Search the titles and content of all BlogEntries for the words in a query
+    // Returns one page (numbered from 0) of the matching entries, best match first
+    public ArrayList<BlogEntry> searchBlogEntries(String query, int page, int pageSize);
     
 }
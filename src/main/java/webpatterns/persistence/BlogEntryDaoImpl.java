@@ -8,12 +8,25 @@ import webpatterns.model.BlogEntry;
 import java.sql.*;
 import java.time.LocalDateTime;
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Stream;
 
 /**
  *
  * @author Michelle
  */
 public class BlogEntryDaoImpl extends MySQLDao implements BlogEntryDao {
+    // Upper bound on the number of entry ids sent in one IN (...) list
+    private static final int IN_CHUNK_SIZE = 500;
+
+    // Concurrent lookups of the same entry (e.g. a popular post) share one query
+    private final SingleFlight<Integer, BlogEntry> idLookups = new SingleFlight<>();
+    // Words of every entry's title and content, for searchBlogEntries
+    private final TextIndex searchIndex = new TextIndex();
+    private volatile boolean searchIndexBuilt;
+
     public BlogEntryDaoImpl(String propertiesFile) {
         super(propertiesFile);
     }
@@ -22,6 +35,10 @@ public class BlogEntryDaoImpl extends MySQLDao implements BlogEntryDao {
         super(conn);
     }
 
+    public BlogEntryDaoImpl(ConnectionPool pool){
+        super(pool);
+    }
+
 
     private static BlogEntry mapRow(ResultSet rs) throws SQLException {
         int entryID = rs.getInt("entryID");
@@ -60,6 +77,7 @@ public class BlogEntryDaoImpl extends MySQLDao implements BlogEntryDao {
             try(ResultSet generatedKeys = ps.getGeneratedKeys()) {
                 if (generatedKeys.next()) {
                     newId = generatedKeys.getInt(1);
+                    searchIndex.add(newId, title, content);
                 }
             }catch (SQLException e){
                 System.err.println(LocalDateTime.now() + ": An SQLException occurred while retrieving the generated " +
@@ -81,6 +99,51 @@ public class BlogEntryDaoImpl extends MySQLDao implements BlogEntryDao {
         return newId;
     }
 
+    /**
+     * Add many <code>BlogEntries</code> to the database using JDBC batches,
+     * rather than one round trip per entry. The entryId of each supplied
+     * <code>BlogEntry</code> is ignored; the database generates a new one.
+     *
+     * @param entries The <code>BlogEntries</code> to be added.
+     *
+     * @return The outcome for each <code>BlogEntry</code>, by position: the
+     *         id it was added with, otherwise the reason it wasn't added
+     *         (e.g. its author doesn't exist).
+     */
+    @Override
+    public BatchResult<Integer> addBlogEntries(List<BlogEntry> entries) {
+        BatchResult<Integer> result = new BatchResult<>(entries.size());
+        for (int i = 0; i < entries.size(); i++) {
+            if (entries.get(i) == null || entries.get(i).getUsername() == null) {
+                result.failed(i, "No author supplied");
+            }
+        }
+
+        List<BlogEntry> toInsert = new ArrayList<>(entries.size());
+        for (int i = 0; i < entries.size(); i++) {
+            toInsert.add(result.hasFailed(i) ? null : entries.get(i));
+        }
+
+        String query = "INSERT INTO blog_entries(username, title, content) VALUES (?, ?, ?)";
+        insertInBatches("addBlogEntries", query, toInsert, true, (ps, b) -> {
+            ps.setString(1, b.getUsername());
+            ps.setString(2, b.getTitle());
+            ps.setString(3, b.getContent());
+        }, new BatchListener() {
+            @Override
+            public void inserted(int row, int generatedKey) {
+                result.succeeded(row, generatedKey);
+                searchIndex.add(generatedKey, entries.get(row).getTitle(), entries.get(row).getContent());
+            }
+
+            @Override
+            public void failed(int row, String reason) {
+                result.failed(row, reason);
+            }
+        });
+        return result;
+    }
+
     /**
      * Remove a <code>BlogEntry</code> from the database.
      *
@@ -97,6 +160,9 @@ public class BlogEntryDaoImpl extends MySQLDao implements BlogEntryDao {
         try (PreparedStatement ps = con.prepareStatement(query)){
             ps.setInt(1, id);
             rowsAffected = ps.executeUpdate();
+            if (rowsAffected != 0) {
+                searchIndex.remove(id);
+            }
         } catch (SQLException e) {
             System.err.println(LocalDateTime.now() + ": An SQLException occurred while removing a BlogEntry." +
                     ".");
@@ -159,6 +225,10 @@ public class BlogEntryDaoImpl extends MySQLDao implements BlogEntryDao {
      */
     @Override
     public BlogEntry findBlogEntryByID(int id) {
+        return coalesce(idLookups, id, () -> loadBlogEntryByID(id));
+    }
+
+    private BlogEntry loadBlogEntryByID(int id) {
         Connection con = this.getConnection();
         String query = "SELECT * FROM blog_entries WHERE entryID = ?";
 
@@ -191,13 +261,13 @@ public class BlogEntryDaoImpl extends MySQLDao implements BlogEntryDao {
      * @param searchTitle The title to search for.
      *
      * @return The <code>BlogEntry</code> matching the specified title. If more
-     *         than one <code>BlogEntry</code> match is found, the first
-     *         <code>BlogEntry</code> is returned.
+     *         than one <code>BlogEntry</code> match is found, the first (the
+     *         one with the lowest id) is returned.
      */
     @Override
     public BlogEntry findBlogEntryByTitle(String searchTitle) {
         Connection con = this.getConnection();
-        String query = "SELECT * FROM blog_entries WHERE title = ?";
+        String query = "SELECT * FROM blog_entries WHERE title = ? ORDER BY entryID LIMIT 1";
 
         BlogEntry b = null;
         try(PreparedStatement ps = con.prepareStatement(query)) {
@@ -252,6 +322,206 @@ public class BlogEntryDaoImpl extends MySQLDao implements BlogEntryDao {
         return entries;     // may be empty
     }
 
+    /**
+     * Retrieve one page of <code>BlogEntries</code>, newest first. Pages are
+     * keyed on the entryID (a keyset cursor) rather than an offset, so each
+     * page is a short range scan of the primary key however deep into the
+     * feed it is.
+     *
+     * @param entryId Only entries with an id lower than this are returned.
+     *                Use <code>Integer.MAX_VALUE</code> for the first page and
+     *                the id of the last entry on a page for the page after it.
+     * @param limit   The maximum number of entries to return.
+     *
+     * @return An <code>ArrayList</code> of at most <code>limit</code>
+     *         <code>BlogEntries</code> in descending entryID order. This will
+     *         be empty if there are no older entries.
+     */
+    @Override
+    public ArrayList<BlogEntry> findBlogEntriesBefore(int entryId, int limit) {
+        Connection con = this.getConnection();
+        ArrayList<BlogEntry> entries = new ArrayList<>();
+
+        String query = "SELECT * FROM blog_entries WHERE entryID < ? ORDER BY entryID DESC LIMIT ?";
+        try (PreparedStatement ps = con.prepareStatement(query)){
+            ps.setInt(1, entryId);
+            ps.setInt(2, limit);
+
+            try(ResultSet rs = ps.executeQuery()) {
+                while (rs.next()) {
+                    BlogEntry b = mapRow(rs);
+                    entries.add(b);
+                }
+            }
+        } catch (SQLException e) {
+            System.err.println(LocalDateTime.now() + ": An SQLException occurred in findBlogEntriesBefore()");
+            System.out.println("Error: " + e.getMessage());
+        }
+
+        this.freeConnection(con);
+        return entries;     // may be empty
+    }
+
+    /**
+     * Stream all <code>BlogEntries</code> in the database, newest first.
+     * Rows are read from the database as the stream is consumed, so memory
+     * use doesn't grow with the size of the table.
+     *
+     * @return A <code>Stream</code> of every <code>BlogEntry</code>. It holds
+     *         a database connection until it is closed.
+     */
+    @Override
+    public Stream<BlogEntry> streamAllBlogEntries() {
+        String query = "SELECT * FROM blog_entries ORDER BY entryID DESC";
+        return streamQuery("streamAllBlogEntries", query, ResultSetStream.Parameters.NONE, BlogEntryDaoImpl::mapRow);
+    }
+
+    /**
+     * Stream all <code>BlogEntries</code> written by a specific author.
+     * Rows are read from the database as the stream is consumed.
+     *
+     * @param author The username of the <code>User</code> who wrote the
+     *               <code>BlogEntries</code>
+     *
+     * @return A <code>Stream</code> of the author's <code>BlogEntries</code>.
+     *         It holds a database connection until it is closed.
+     */
+    @Override
+    public Stream<BlogEntry> streamBlogEntriesByAuthor(String author) {
+        String query = "SELECT * FROM blog_entries WHERE username = ?";
+        return streamQuery("streamBlogEntriesByAuthor", query, ps -> ps.setString(1, author),
+                BlogEntryDaoImpl::mapRow);
+    }
+
+    /**
+     * Search the titles and content of all <code>BlogEntries</code>. The
+     * search runs against an in-memory index of their words (see
+     * <code>TextIndex</code>), kept up to date by this DAO's adds and
+     * removes, so only the entries on the requested page are read from the
+     * database.
+     *
+     * @param query    The words to search for. Entries matching any of them
+     *                 are returned; those matching more, or rarer, words (or
+     *                 matching them in the title) rank higher.
+     * @param page     The page of results to return, numbered from 0.
+     * @param pageSize The number of results per page.
+     *
+     * @return An <code>ArrayList</code> of at most <code>pageSize</code>
+     *         <code>BlogEntries</code>, best match first. This will be empty
+     *         if nothing matched or the page is past the last result.
+     */
+    @Override
+    public ArrayList<BlogEntry> searchBlogEntries(String query, int page, int pageSize) {
+        if (!searchIndexBuilt) {
+            buildSearchIndex();
+        }
+        if (page < 0 || pageSize <= 0) {
+            return new ArrayList<>();
+        }
+        List<Integer> ranked = searchIndex.search(query);
+        long offset = (long) page * pageSize;
+        ArrayList<BlogEntry> entries = new ArrayList<>(pageSize);
+
+        // Entries removed outside this DAO (or while the index was being built) may still be in
+        // the index. Only entries that are found count towards the page, so a missing one doesn't
+        // leave the page short: the ranked ids are read a chunk at a time until the page is full.
+        long skipped = 0;
+        int next = 0;
+        while (entries.size() < pageSize && next < ranked.size()) {
+            // Enough for the rest of the page if none of them are missing
+            long wanted = offset - skipped + pageSize - entries.size();
+            List<Integer> chunk = ranked.subList(next, (int) Math.min(next + Math.min(wanted, IN_CHUNK_SIZE),
+                    ranked.size()));
+            next += chunk.size();
+
+            Map<Integer, BlogEntry> found = findBlogEntriesByIds(chunk);
+            if (found == null) {
+                return new ArrayList<>();
+            }
+            for (int id : chunk) {
+                BlogEntry b = found.get(id);
+                if (b == null) {
+                    continue;
+                }
+                if (skipped < offset) {
+                    skipped++;
+                } else if (entries.size() < pageSize) {
+                    entries.add(b);
+                }
+            }
+        }
+        return entries;
+    }
+
+    /**
+     * Build the search index from every <code>BlogEntry</code> in the
+     * database, streaming them rather than loading the table into memory.
+     * Started at startup; a search made before it finishes waits for it, and
+     * one made after it failed tries again. Does nothing once the index is
+     * built.
+     *
+     * @return True if the index is built, false if the database couldn't be
+     *         read.
+     */
+    public synchronized boolean buildSearchIndex() {
+        if (searchIndexBuilt) {
+            return true;
+        }
+        Connection con = this.getConnection();
+        if (con == null) {
+            return false;
+        }
+        boolean built = false;
+        String query = "SELECT entryID, title, content FROM blog_entries";
+        try (PreparedStatement ps = con.prepareStatement(query, ResultSet.TYPE_FORWARD_ONLY,
+                ResultSet.CONCUR_READ_ONLY)) {
+            ps.setFetchSize(streamingFetchSize(con));
+            try (ResultSet rs = ps.executeQuery()) {
+                while (rs.next()) {
+                    searchIndex.add(rs.getInt("entryID"), rs.getString("title"), rs.getString("content"));
+                }
+            }
+            built = true;
+            searchIndexBuilt = true;
+        } catch (SQLException e) {
+            System.err.println(LocalDateTime.now() + ": An SQLException occurred in buildSearchIndex()");
+            System.out.println("Error: " + e.getMessage());
+        }
+        this.freeConnection(con);
+        return built;
+    }
+
+    // Look up many entries by id with a single IN query. Null if the query failed.
+    private Map<Integer, BlogEntry> findBlogEntriesByIds(List<Integer> ids) {
+        Map<Integer, BlogEntry> entries = new HashMap<>();
+        if (ids.isEmpty()) {
+            return entries;
+        }
+        Connection con = this.getConnection();
+        if (con == null) {
+            return null;
+        }
+
+        String query = "SELECT * FROM blog_entries WHERE entryID IN (" + UserDaoImpl.placeholders(ids.size()) + ")";
+        try (PreparedStatement ps = con.prepareStatement(query)) {
+            for (int i = 0; i < ids.size(); i++) {
+                ps.setInt(i + 1, ids.get(i));
+            }
+            try (ResultSet rs = ps.executeQuery()) {
+                while (rs.next()) {
+                    BlogEntry b = mapRow(rs);
+                    entries.put(b.getEntryId(), b);
+                }
+            }
+        } catch (SQLException e) {
+            System.err.println(LocalDateTime.now() + ": An SQLException occurred while finding blog entries by id");
+            System.out.println("Error: " + e.getMessage());
+            entries = null;
+        }
+        this.freeConnection(con);
+        return entries;
+    }
+
     // Sample code showing these methods in use.
     public static void main(String[] args) {
         BlogEntryDaoImpl blogDAO = new BlogEntryDaoImpl("database.properties");
@@ -0,0 +1,291 @@
+package webpatterns.persistence;
+
+import lombok.extern.slf4j.Slf4j;
+import webpatterns.model.BlogEntry;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.stream.Stream;
+
+/**
+ * Keeps the newest <code>feedSize</code> blog entries in memory in front of
+ * another <code>BlogEntryDao</code>, so the home page and the first pages of
+ * the blog index don't touch the database.
+ *
+ * The cached feed is served stale-while-revalidate: once it is older than
+ * <code>maxAge</code>, the next read starts a refresh on a background
+ * thread and carries on serving the current copy. Requests therefore never
+ * wait on the database for the feed (except for the very first one), even
+ * while it is slow or unavailable.
+ *
+ * Title lookups (permalinks) are cached too, including titles that match
+ * nothing, so a repeat hit on a permalink costs a map lookup. Adding an entry
+ * forgets what was cached for its title; removing one clears the title cache,
+ * since the entry with the next lowest id may now be the first match.
+ *
+ * Entries added or removed through this DAO are applied to the cached feed
+ * straight away. Everything else is passed through.
+ */
+@Slf4j
+public class CachingBlogEntryDao implements BlogEntryDao, AutoCloseable {
+    private final BlogEntryDao delegate;
+    private final int feedSize;
+    private final long maxAgeNanos;
+    private final ExecutorService refresher = Executors.newSingleThreadExecutor(r -> {
+        Thread t = new Thread(r, "blog-feed-refresh");
+        t.setDaemon(true);
+        return t;
+    });
+    private final AtomicBoolean refreshing = new AtomicBoolean();
+
+    // Never modified once published (changes replace the whole feed); null until first loaded
+    private volatile Feed feed;
+    // Concurrent first readers share one load, which runs without holding this object's monitor
+    private final SingleFlight<Boolean, Feed> firstLoad = new SingleFlight<>();
+    private volatile long loadedAt;
+    // Bumped by every change pushed into the feed, so that a refresh which overlapped one is discarded
+    private long version;
+
+    // Lower-cased title -> first entry with that title (or null if there is none)
+    private final LruCache<String, BlogEntry> byTitle;
+
+    public CachingBlogEntryDao(BlogEntryDao delegate, int feedSize, long maxAge, int titleCacheSize, long titleTtl,
+                               TimeUnit unit) {
+        this.delegate = delegate;
+        this.feedSize = feedSize;
+        this.maxAgeNanos = unit.toNanos(maxAge);
+        this.byTitle = new LruCache<>(titleCacheSize, titleTtl, unit);
+    }
+
+    @Override
+    public int addBlogEntry(String username, String title, String content) {
+        int newId = delegate.addBlogEntry(username, title, content);
+        if (newId != -1) {
+            forgetTitle(title);
+            synchronized (this) {
+                Feed current = feed;
+                if (current != null) {
+                    List<BlogEntry> updated = new ArrayList<>(feedSize);
+                    updated.add(new BlogEntry(newId, username, title, content));
+                    updated.addAll(current.entries.subList(0, Math.min(current.entries.size(), feedSize - 1)));
+                    feed = new Feed(updated, current.complete && current.entries.size() < feedSize);
+                }
+                version++;
+            }
+        }
+        return newId;
+    }
+
+    @Override
+    public BatchResult<Integer> addBlogEntries(List<BlogEntry> entries) {
+        BatchResult<Integer> result = delegate.addBlogEntries(entries);
+        if (result.getSuccessCount() > 0) {
+            for (int i = 0; i < entries.size(); i++) {
+                if (result.getKey(i) != null) {
+                    forgetTitle(entries.get(i).getTitle());
+                }
+            }
+            synchronized (this) {
+                Feed current = feed;
+                if (current != null) {
+                    List<BlogEntry> updated = new ArrayList<>(current.entries);
+                    for (int i = 0; i < entries.size(); i++) {
+                        Integer newId = result.getKey(i);
+                        if (newId != null) {
+                            BlogEntry b = entries.get(i);
+                            updated.add(new BlogEntry(newId, b.getUsername(), b.getTitle(), b.getContent()));
+                        }
+                    }
+                    // Newest first, as the feed is read from the database
+                    updated.sort(null);
+                    feed = new Feed(updated.subList(0, Math.min(updated.size(), feedSize)),
+                            current.complete && updated.size() <= feedSize);
+                }
+                version++;
+            }
+        }
+        return result;
+    }
+
+    @Override
+    public int removeBlogEntry(int id) {
+        int result = delegate.removeBlogEntry(id);
+        if (result != 0) {
+            byTitle.clear();
+            boolean refill = false;
+            synchronized (this) {
+                Feed current = feed;
+                if (current != null) {
+                    List<BlogEntry> updated = current.entries.stream().filter(b -> b.getEntryId() != id).toList();
+                    // An older entry now belongs at the end of the feed
+                    refill = updated.size() < current.entries.size() && !current.complete;
+                    feed = new Feed(updated, current.complete);
+                }
+                version++;
+            }
+            if (refill) {
+                refreshInBackground();
+            }
+        }
+        return result;
+    }
+
+    @Override
+    public ArrayList<BlogEntry> findBlogEntriesByAuthor(String author) {
+        return delegate.findBlogEntriesByAuthor(author);
+    }
+
+    @Override
+    public BlogEntry findBlogEntryByID(int id) {
+        return delegate.findBlogEntryByID(id);
+    }
+
+    @Override
+    public BlogEntry findBlogEntryByTitle(String searchTitle) {
+        if (searchTitle == null) {
+            return delegate.findBlogEntryByTitle(null);
+        }
+        // Titles compare ignoring case in the database, so one cached answer serves every spelling
+        return byTitle.get(titleKey(searchTitle), k -> delegate.findBlogEntryByTitle(searchTitle));
+    }
+
+    @Override
+    public ArrayList<BlogEntry> findAllBlogEntries() {
+        return delegate.findAllBlogEntries();
+    }
+
+    @Override
+    public Stream<BlogEntry> streamAllBlogEntries() {
+        return delegate.streamAllBlogEntries();
+    }
+
+    @Override
+    public Stream<BlogEntry> streamBlogEntriesByAuthor(String author) {
+        return delegate.streamBlogEntriesByAuthor(author);
+    }
+
+    @Override
+    public ArrayList<BlogEntry> searchBlogEntries(String query, int page, int pageSize) {
+        return delegate.searchBlogEntries(query, page, pageSize);
+    }
+
+    /**
+     * Served from the cached feed whenever it can answer the whole page,
+     * i.e. it holds <code>limit</code> entries older than
+     * <code>entryId</code>, or it holds every entry in the table.
+     */
+    @Override
+    public ArrayList<BlogEntry> findBlogEntriesBefore(int entryId, int limit) {
+        Feed current = getFeed();
+        ArrayList<BlogEntry> page = new ArrayList<>(limit);
+        for (BlogEntry b : current.entries) {
+            if (page.size() == limit) {
+                break;
+            }
+            if (b.getEntryId() < entryId) {
+                page.add(b);
+            }
+        }
+        if (page.size() == limit || current.complete) {
+            return page;
+        }
+        return delegate.findBlogEntriesBefore(entryId, limit);
+    }
+
+    @Override
+    public void close() {
+        refresher.shutdownNow();
+    }
+
+    private void forgetTitle(String title) {
+        if (title != null) {
+            byTitle.invalidate(titleKey(title));
+        }
+    }
+
+    private static String titleKey(String title) {
+        return title.toLowerCase(Locale.ROOT);
+    }
+
+    // The cached feed, loading it on first use and refreshing it in the background once stale
+    private Feed getFeed() {
+        Feed current = feed;
+        if (current == null) {
+            return firstLoad.execute(Boolean.TRUE, () -> {
+                if (feed == null) {
+                    refresh();
+                }
+                return feed;
+            });
+        }
+        if (System.nanoTime() - loadedAt > maxAgeNanos) {
+            refreshInBackground();
+        }
+        return current;
+    }
+
+    private void refreshInBackground() {
+        if (refreshing.compareAndSet(false, true)) {
+            try {
+                refresher.execute(() -> {
+                    try {
+                        refresh();
+                    } catch (RuntimeException e) {
+                        log.error("Refreshing the blog feed failed, keeping the current copy", e);
+                    } finally {
+                        refreshing.set(false);
+                    }
+                });
+            } catch (RuntimeException e) {
+                refreshing.set(false);
+                log.warn("Unable to schedule a blog feed refresh: {}", e.getMessage());
+            }
+        }
+    }
+
+    private void refresh() {
+        long startVersion;
+        synchronized (this) {
+            startVersion = version;
+        }
+        List<BlogEntry> latest = List.copyOf(delegate.findBlogEntriesBefore(Integer.MAX_VALUE, feedSize));
+        synchronized (this) {
+            if (version != startVersion) {
+                // A change was pushed while reading, the result may not include it. Try again later.
+                loadedAt = 0;
+                if (feed == null) {
+                    feed = new Feed(latest, false);
+                }
+                return;
+            }
+            // The DAO reports database errors as an empty result; don't throw away a good copy for one
+            if (latest.isEmpty() && feed != null && !feed.entries.isEmpty()) {
+                log.warn("Blog feed refresh returned no entries, keeping the current copy");
+                loadedAt = System.nanoTime();
+                return;
+            }
+            // For the same reason an empty result is never taken to be the whole table,
+            // so older pages keep going to the database until a real load succeeds
+            feed = new Feed(latest, !latest.isEmpty() && latest.size() < feedSize);
+            loadedAt = System.nanoTime();
+        }
+    }
+
+    // The cached entries and whether they are every entry in the table, published together
+    private static final class Feed {
+        // Newest first
+        private final List<BlogEntry> entries;
+        // True when the table has fewer than feedSize entries, so the feed holds all of them
+        private final boolean complete;
+
+        private Feed(List<BlogEntry> entries, boolean complete) {
+            this.entries = List.copyOf(entries);
+            this.complete = complete;
+        }
+    }
+}
@@ -0,0 +1,134 @@
+package webpatterns.persistence;
+
+import webpatterns.model.User;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Read-through cache in front of another <code>UserDao</code>.
+ *
+ * Every lookup by username (including the admin check) is served from a
+ * bounded, expiring cache of <code>User</code> records, and only reaches
+ * the database on a miss. Unknown usernames are cached too.
+ * <code>addUser</code> and <code>removeUser</code> invalidate the affected
+ * entry, so changes made through this DAO are seen straight away; changes
+ * made directly in the database are seen once the entry expires.
+ *
+ * Password checks (<code>login</code> and
+ * <code>findUserByUsernamePassword</code>) always go to the underlying DAO,
+ * so turning the cache on or off never changes which passwords are accepted
+ * (the database compares them using the column's collation).
+ */
+public class CachingUserDao implements UserDao {
+    private final UserDao delegate;
+    private final LruCache<String, User> cache;
+
+    public CachingUserDao(UserDao delegate, int maxSize, long ttl, TimeUnit unit) {
+        this.delegate = delegate;
+        this.cache = new LruCache<>(maxSize, ttl, unit);
+    }
+
+    @Override
+    public User findUserByUsernamePassword(String uname, String pword) {
+        return delegate.findUserByUsernamePassword(uname, pword);
+    }
+
+    @Override
+    public User findUserByUsername(String uname) {
+        if (uname == null) {
+            return null;
+        }
+        return cache.get(key(uname), k -> delegate.findUserByUsername(uname));
+    }
+
+    @Override
+    public Map<String, User> findUsersByUsernames(Collection<String> unames) {
+        Map<String, User> users = new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
+        List<String> missing = new ArrayList<>();
+        for (String uname : unames) {
+            if (uname == null) {
+                continue;
+            }
+            LruCache.Entry<User> entry = cache.getEntry(key(uname));
+            if (entry == null) {
+                missing.add(uname);
+            } else if (entry.getValue() != null) {
+                users.put(uname, entry.getValue());
+            }
+        }
+
+        if (!missing.isEmpty()) {
+            long loadGeneration = cache.getGeneration();
+            Map<String, User> found = delegate.findUsersByUsernames(missing);
+            for (String uname : missing) {
+                User u = found.get(uname);
+                cache.put(key(uname), u, loadGeneration);
+                if (u != null) {
+                    users.put(uname, u);
+                }
+            }
+        }
+        return users;
+    }
+
+    @Override
+    public boolean checkIfUserIsAdmin(String uname) {
+        User u = findUserByUsername(uname);
+        return u != null && u.isAdmin();
+    }
+
+    @Override
+    public boolean addUser(User u) {
+        try {
+            return delegate.addUser(u);
+        } finally {
+            cache.invalidate(key(u.getUsername()));
+        }
+    }
+
+    @Override
+    public BatchResult<String> addUsers(List<User> users) {
+        try {
+            return delegate.addUsers(users);
+        } finally {
+            for (User u : users) {
+                if (u != null && u.getUsername() != null) {
+                    cache.invalidate(key(u.getUsername()));
+                }
+            }
+        }
+    }
+
+    @Override
+    public boolean removeUser(User u) {
+        try {
+            return delegate.removeUser(u);
+        } finally {
+            cache.invalidate(key(u.getUsername()));
+        }
+    }
+
+    @Override
+    public User login(String username, String password) {
+        return delegate.login(username, password);
+    }
+
+    public long getHitCount() {
+        return cache.getHitCount();
+    }
+
+    public long getMissCount() {
+        return cache.getMissCount();
+    }
+
+    // Usernames are compared ignoring case in the database, so they are here too
+    private static String key(String uname) {
+        return uname.toLowerCase(Locale.ROOT);
+    }
+}
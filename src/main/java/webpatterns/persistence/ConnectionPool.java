@@ -0,0 +1,315 @@
+package webpatterns.persistence;
+
+import com.zaxxer.hikari.HikariConfig;
+import com.zaxxer.hikari.HikariDataSource;
+import com.zaxxer.hikari.HikariPoolMXBean;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+/**
+ * A bounded pool of database connections shared by every DAO built from the
+ * same properties file.
+ *
+ * The pool is configured from the same properties file as the DAOs (driver,
+ * url, database, username, password) along with the following optional
+ * <code>pool.*</code> settings:
+ * <ul>
+ *     <li><code>pool.minIdle</code> - connections kept open when the pool is quiet</li>
+ *     <li><code>pool.maxSize</code> - upper bound on open connections</li>
+ *     <li><code>pool.acquireTimeout</code> - ms to wait for a free connection before failing</li>
+ *     <li><code>pool.idleTimeout</code> - ms an idle connection (above minIdle) is kept before eviction</li>
+ *     <li><code>pool.maxLifetime</code> - ms before a connection is retired and replaced</li>
+ *     <li><code>pool.validationTimeout</code> - ms allowed for checking a connection is still alive</li>
+ *     <li><code>pool.validationQuery</code> - query used for validation (JDBC isValid() if absent)</li>
+ *     <li><code>pool.leakDetectionThreshold</code> - ms a connection can be held before a leak is logged (0 = off)</li>
+ * </ul>
+ *
+ * Any <code>jdbc.*</code> setting is passed to the driver as a connection
+ * property with the prefix removed (e.g.
+ * <code>jdbc.rewriteBatchedStatements=true</code>).
+ *
+ * A thread can also bind a single connection for the length of a unit of
+ * work (see <code>inUnitOfWork</code>). While it is bound, every DAO on that
+ * thread using this pool is handed the same connection and takes part in the
+ * same transaction.
+ */
+@Slf4j
+public class ConnectionPool implements AutoCloseable {
+    private static final Map<String, ConnectionPool> POOLS = new ConcurrentHashMap<>();
+
+    private final HikariDataSource dataSource;
+    private final LongAdder acquisitions = new LongAdder();
+    private final LongAdder failedAcquisitions = new LongAdder();
+    private final LongAdder acquireNanos = new LongAdder();
+    private final AtomicLong maxAcquireNanos = new AtomicLong();
+    private final ThreadLocal<UnitOfWork> currentUnitOfWork = new ThreadLocal<>();
+
+    public ConnectionPool(Properties properties) {
+        HikariConfig config = new HikariConfig();
+        config.setPoolName("myBlog-" + properties.getProperty("database"));
+        config.setDriverClassName(properties.getProperty("driver"));
+        config.setJdbcUrl(properties.getProperty("url") + properties.getProperty("database"));
+        config.setUsername(properties.getProperty("username"));
+        config.setPassword(properties.getProperty("password", ""));
+
+        config.setMinimumIdle(intProperty(properties, "pool.minIdle", 2));
+        config.setMaximumPoolSize(intProperty(properties, "pool.maxSize", 10));
+        config.setConnectionTimeout(longProperty(properties, "pool.acquireTimeout", 5000));
+        config.setIdleTimeout(longProperty(properties, "pool.idleTimeout", 600000));
+        config.setMaxLifetime(longProperty(properties, "pool.maxLifetime", 1800000));
+        config.setValidationTimeout(longProperty(properties, "pool.validationTimeout", 3000));
+        config.setLeakDetectionThreshold(longProperty(properties, "pool.leakDetectionThreshold", 0));
+        String validationQuery = properties.getProperty("pool.validationQuery");
+        if (validationQuery != null && !validationQuery.isBlank()) {
+            config.setConnectionTestQuery(validationQuery);
+        }
+        for (String name : properties.stringPropertyNames()) {
+            if (name.startsWith("jdbc.")) {
+                config.addDataSourceProperty(name.substring("jdbc.".length()), properties.getProperty(name));
+            }
+        }
+        // Don't refuse to start if the database isn't up yet, connections are
+        // (re)established in the background and on first use.
+        config.setInitializationFailTimeout(-1);
+
+        this.dataSource = new HikariDataSource(config);
+    }
+
+    /**
+     * Get the pool for a properties file on the classpath. The file is only
+     * read the first time a pool is requested for it, later calls share the
+     * same pool.
+     *
+     * @param propertiesFilename The name of the properties file on the
+     *                           classpath.
+     *
+     * @return The pool configured from that file.
+     */
+    public static ConnectionPool forPropertiesFile(String propertiesFilename) {
+        return POOLS.computeIfAbsent(propertiesFilename, f -> new ConnectionPool(loadProperties(f)));
+    }
+
+    static Properties loadProperties(String propertiesFilename) {
+        Properties properties = new Properties();
+        try (InputStream in = Thread.currentThread().getContextClassLoader().getResourceAsStream(propertiesFilename)) {
+            if (in == null) {
+                throw new IOException("resource not found on the classpath");
+            }
+            properties.load(in);
+        } catch (IOException e) {
+            log.error("An exception occurred when attempting to load properties from \"{}\": {}",
+                    propertiesFilename, e.getMessage());
+        }
+        return properties;
+    }
+
+    /**
+     * Borrow a connection from the pool, waiting up to the acquire timeout
+     * if every connection is in use. Closing the returned connection hands it
+     * back to the pool.
+     *
+     * @return An open connection.
+     *
+     * @throws SQLException if no connection could be obtained in time.
+     */
+    public Connection getConnection() throws SQLException {
+        long start = System.nanoTime();
+        try {
+            Connection con = dataSource.getConnection();
+            long elapsed = System.nanoTime() - start;
+            acquisitions.increment();
+            acquireNanos.add(elapsed);
+            maxAcquireNanos.accumulateAndGet(elapsed, Math::max);
+            return con;
+        } catch (SQLException e) {
+            failedAcquisitions.increment();
+            throw e;
+        }
+    }
+
+    /**
+     * Run a piece of work on a single connection and in a single transaction.
+     * Any DAO method called from inside the work (on this thread) reuses the
+     * bound connection rather than borrowing its own. If a unit of work is
+     * already running on this thread, the work simply joins it.
+     *
+     * The transaction is committed when the work returns, and rolled back if
+     * it throws a RuntimeException or calls <code>setRollbackOnly()</code>.
+     * Actions registered with <code>afterCommit</code> run once the commit
+     * has gone through, and are dropped on a rollback.
+     *
+     * @param work The work to run.
+     *
+     * @return Whatever the work returns.
+     */
+    public <T> T inUnitOfWork(Supplier<T> work) {
+        if (currentUnitOfWork.get() != null) {
+            return work.get();
+        }
+
+        Connection con = null;
+        try {
+            con = getConnection();
+            con.setAutoCommit(false);
+        } catch (SQLException e) {
+            // Let each DAO call try (and report) on its own
+            log.error("Unable to start a unit of work, running without a shared connection: {}", e.getMessage());
+            closeQuietly(con);
+            return work.get();
+        }
+
+        UnitOfWork unitOfWork = new UnitOfWork(con);
+        currentUnitOfWork.set(unitOfWork);
+        try {
+            T result = work.get();
+            if (unitOfWork.rollbackOnly) {
+                con.rollback();
+            } else {
+                con.commit();
+                runAfterCommit(unitOfWork);
+            }
+            return result;
+        } catch (SQLException e) {
+            rollbackQuietly(con);
+            throw new IllegalStateException("Unable to complete a unit of work: " + e.getMessage(), e);
+        } catch (RuntimeException e) {
+            rollbackQuietly(con);
+            throw e;
+        } finally {
+            currentUnitOfWork.remove();
+            try {
+                con.setAutoCommit(true);
+                con.close();
+            } catch (SQLException e) {
+                log.error("SQLException occurred while releasing a unit of work connection", e);
+            }
+        }
+    }
+
+    /**
+     * Mark the unit of work running on this thread so that it is rolled back
+     * instead of committed. Does nothing if no unit of work is running.
+     */
+    public void setRollbackOnly() {
+        UnitOfWork unitOfWork = currentUnitOfWork.get();
+        if (unitOfWork != null) {
+            unitOfWork.rollbackOnly = true;
+        }
+    }
+
+    /**
+     * Run an action once the unit of work running on this thread has
+     * committed, e.g. to update an in-memory cache only when the change it
+     * mirrors is kept. The action is dropped if the work is rolled back.
+     * Outside a unit of work each statement commits as it runs, so the
+     * action runs straight away.
+     *
+     * @param action The action to run.
+     */
+    public void afterCommit(Runnable action) {
+        UnitOfWork unitOfWork = currentUnitOfWork.get();
+        if (unitOfWork == null) {
+            action.run();
+        } else {
+            unitOfWork.afterCommit.add(action);
+        }
+    }
+
+    // The transaction is already committed, so a failing action mustn't stop the rest or the caller
+    private static void runAfterCommit(UnitOfWork unitOfWork) {
+        for (Runnable action : unitOfWork.afterCommit) {
+            try {
+                action.run();
+            } catch (RuntimeException e) {
+                log.error("An after-commit action failed", e);
+            }
+        }
+    }
+
+    /**
+     * @return The connection bound to this thread by a running unit of work,
+     *         or null if there isn't one.
+     */
+    public Connection getBoundConnection() {
+        UnitOfWork unitOfWork = currentUnitOfWork.get();
+        return unitOfWork == null ? null : unitOfWork.connection;
+    }
+
+    private static void closeQuietly(Connection con) {
+        if (con != null) {
+            try {
+                con.close();
+            } catch (SQLException e) {
+                log.error("SQLException occurred while closing a connection", e);
+            }
+        }
+    }
+
+    private static void rollbackQuietly(Connection con) {
+        try {
+            con.rollback();
+        } catch (SQLException e) {
+            log.error("SQLException occurred while rolling back a unit of work", e);
+        }
+    }
+
+    public PoolStats getStats() {
+        int active = 0, idle = 0, total = 0, waiters = 0;
+        HikariPoolMXBean pool = dataSource.getHikariPoolMXBean();
+        if (pool != null) {
+            active = pool.getActiveConnections();
+            idle = pool.getIdleConnections();
+            total = pool.getTotalConnections();
+            waiters = pool.getThreadsAwaitingConnection();
+        }
+        long count = acquisitions.sum();
+        double average = count == 0 ? 0 : acquireNanos.sum() / (double) count / 1_000_000;
+        return new PoolStats(active, idle, total, waiters, count, failedAcquisitions.sum(), average,
+                maxAcquireNanos.get() / 1_000_000.0);
+    }
+
+    @Override
+    public void close() {
+        POOLS.values().remove(this);
+        dataSource.close();
+    }
+
+    private static class UnitOfWork {
+        private final Connection connection;
+        private final List<Runnable> afterCommit = new ArrayList<>();
+        private boolean rollbackOnly;
+
+        private UnitOfWork(Connection connection) {
+            this.connection = connection;
+        }
+    }
+
+    private static int intProperty(Properties properties, String key, int defaultValue) {
+        return (int) longProperty(properties, key, defaultValue);
+    }
+
+    private static long longProperty(Properties properties, String key, long defaultValue) {
+        String value = properties.getProperty(key);
+        if (value == null || value.isBlank()) {
+            return defaultValue;
+        }
+        try {
+            return Long.parseLong(value.trim());
+        } catch (NumberFormatException e) {
+            log.warn("Ignoring invalid value \"{}\" for {}, using {}", value, key, defaultValue);
+            return defaultValue;
+        }
+    }
+}
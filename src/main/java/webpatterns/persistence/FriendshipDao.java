@@ -5,6 +5,8 @@ package webpatterns.persistence;
 import webpatterns.model.Friendship;
 
 import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.Stream;
 
 /**
  *
@@ -16,6 +18,11 @@ public interface FriendshipDao
     // This will return 0 if the friendship was not added to the database
     // and 1 if the friendship was added to the database
     public int addFriendship(String username1, String username2);
+
+    // Adding many Friendships using batched inserts
+    // This will return the outcome of each friendship (by its position in the list): the
+    // friendship if it was added, or the reason it couldn't be (e.g. the users are already friends)
+    public BatchResult<Friendship> addFriendships(List<Friendship> friendships);
     
     // Removing a specific Friendship - if the friendship was removed successfully 
     // this will return true, else it will return false
@@ -28,9 +35,21 @@ public interface FriendshipDao
     // Finding all Friendships for a specific user
     // This will return a list of Friendships for the specific User
     public ArrayList<Friendship> findFriendshipsByUsername(String username);
+
+    // Finding the usernames of all of a specific user's friends, without their details
+    // This will return an empty list if the user has no friends (or doesn't exist)
+    public List<String> findFriendNames(String username);
+
+    // Streaming all Friendships for a specific user, without loading them all into memory
+    // The stream holds a database connection until it is closed, so close it when done
+    public Stream<Friendship> streamFriendshipsByUsername(String username);
     
     // Confirming a Friendship between two users.
     // This will return a Friendship object containing both users if a friendship exists
     // If no friendship exists between them, it will return null.
     public Friendship checkFriendshipStatus(String username1, String username2);
+
+    // Checking whether two users are friends, without fetching their details.
+    // This will return true if a friendship exists between them, false otherwise.
+    public boolean areFriends(String username1, String username2);
 }
@@ -8,18 +8,61 @@ import webpatterns.model.User;
 import java.sql.*;
 import java.time.LocalDateTime;
 import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.stream.Stream;
 
 /**
  *
  * @author Michelle
  */
 public class FriendshipDaoImpl extends MySQLDao implements FriendshipDao {
+    // Both users' details are joined in, so a Friendship can be built from a
+    // single row without looking either user up separately.
+    private static final String FRIENDSHIP_SELECT = "SELECT "
+            + "u1.username AS u1_username, u1.password AS u1_password, u1.firstName AS u1_firstName, "
+            + "u1.lastName AS u1_lastName, u1.isAdmin AS u1_isAdmin, "
+            + "u2.username AS u2_username, u2.password AS u2_password, u2.firstName AS u2_firstName, "
+            + "u2.lastName AS u2_lastName, u2.isAdmin AS u2_isAdmin "
+            + "FROM friends f "
+            + "JOIN users u1 ON u1.username = f.friend1 "
+            + "JOIN users u2 ON u2.username = f.friend2 ";
+
+    // Each half of the UNION ALL is an index lookup (primary key / idx_friends_friend2),
+    // where a single OR across both columns could only be answered by a scan
+    private static final String FRIENDSHIPS_BY_USERNAME = FRIENDSHIP_SELECT + "WHERE f.friend1 = ? "
+            + "UNION ALL "
+            + FRIENDSHIP_SELECT + "WHERE f.friend2 = ? AND f.friend1 <> f.friend2";
+
+    // In-memory friendships; only changed once the database change it mirrors has committed
+    private final FriendshipGraph graph;
+    // Supplies both users' details when the graph already knows they are friends (may be null)
+    private final UserDao userDao;
+
     public FriendshipDaoImpl(String propertiesFile) {
         super(propertiesFile);
+        this.graph = new FriendshipGraph();
+        this.userDao = null;
     }
 
     public FriendshipDaoImpl(Connection conn){
         super(conn);
+        this.graph = new FriendshipGraph();
+        this.userDao = null;
+    }
+
+    public FriendshipDaoImpl(ConnectionPool pool, FriendshipGraph graph, UserDao userDao){
+        super(pool);
+        this.graph = graph;
+        this.userDao = userDao;
+    }
+
+    private static Friendship mapRow(ResultSet rs) throws SQLException {
+        User friend1 = UserDaoImpl.mapRow(rs, "u1_");
+        User friend2 = UserDaoImpl.mapRow(rs, "u2_");
+        return new Friendship(friend1, friend2);
     }
 
     /**
@@ -44,6 +87,9 @@ public class FriendshipDaoImpl extends MySQLDao implements FriendshipDao {
             ps.setString(2, username2);
 
             rowsAffected = ps.executeUpdate();
+            if (rowsAffected != 0) {
+                afterCommit(() -> graph.addFriendship(username1, username2));
+            }
         } catch(SQLIntegrityConstraintViolationException e){
             System.err.println(LocalDateTime.now() + ": An integrity constraint failed in addFriendship().");
             System.out.println("Error: " + e.getMessage());
@@ -55,6 +101,64 @@ public class FriendshipDaoImpl extends MySQLDao implements FriendshipDao {
         return rowsAffected;
     }
 
+    /**
+     * Add many <code>Friendships</code> to the database using JDBC batches,
+     * rather than one round trip per friendship. Only the usernames of the
+     * users in each <code>Friendship</code> are used.
+     *
+     * @param friendships The <code>Friendships</code> to be added.
+     *
+     * @return The outcome for each <code>Friendship</code>, by position: the
+     *         <code>Friendship</code> if it was added, otherwise the reason it
+     *         wasn't (a user befriending themselves, a pair listed twice, the
+     *         users already being friends, or a user not existing).
+     */
+    @Override
+    public BatchResult<Friendship> addFriendships(List<Friendship> friendships) {
+        BatchResult<Friendship> result = new BatchResult<>(friendships.size());
+        List<Friendship> toInsert = new ArrayList<>(friendships.size());
+        HashSet<String> seen = new HashSet<>();
+        for (int i = 0; i < friendships.size(); i++) {
+            Friendship f = friendships.get(i);
+            toInsert.add(null);
+            if (f == null || f.getUser1().getUsername() == null || f.getUser2().getUsername() == null) {
+                result.failed(i, "Both users must be supplied");
+            } else if (f.getUser1().getUsername().equalsIgnoreCase(f.getUser2().getUsername())) {
+                result.failed(i, "A user can't be friends with themselves");
+            } else if (!seen.add(pairKey(f))) {
+                result.failed(i, "Friendship appears more than once in the batch");
+            } else {
+                toInsert.set(i, f);
+            }
+        }
+
+        String query = "INSERT INTO friends(friend1, friend2) VALUES (?, ?)";
+        insertInBatches("addFriendships", query, toInsert, false, (ps, f) -> {
+            ps.setString(1, f.getUser1().getUsername());
+            ps.setString(2, f.getUser2().getUsername());
+        }, new BatchListener() {
+            @Override
+            public void inserted(int row, int generatedKey) {
+                Friendship f = friendships.get(row);
+                afterCommit(() -> graph.addFriendship(f.getUser1().getUsername(), f.getUser2().getUsername()));
+                result.succeeded(row, f);
+            }
+
+            @Override
+            public void failed(int row, String reason) {
+                result.failed(row, reason);
+            }
+        });
+        return result;
+    }
+
+    // Identifies a pair of users regardless of order or case, as the friends table does
+    private static String pairKey(Friendship f) {
+        String name1 = f.getUser1().getUsername().toLowerCase(Locale.ROOT);
+        String name2 = f.getUser2().getUsername().toLowerCase(Locale.ROOT);
+        return name1.compareTo(name2) < 0 ? name1 + "\n" + name2 : name2 + "\n" + name1;
+    }
+
     /**
      * Remove a <code>Friendship</code> from the database
      *
@@ -82,6 +186,7 @@ public class FriendshipDaoImpl extends MySQLDao implements FriendshipDao {
             int rowsAffected = ps.executeUpdate();
             if (rowsAffected != 0) {
                 removed = true;
+                afterCommit(() -> graph.removeFriendship(username1, username2));
             }
         } catch(SQLException e){
             System.err.println(LocalDateTime.now() + ": An SQLException occurred in removeFriendship().");
@@ -102,25 +207,32 @@ public class FriendshipDaoImpl extends MySQLDao implements FriendshipDao {
      */
     @Override
     public boolean removeUserFriends(String username1) {
-        Connection con = this.getConnection();
-        String query = "DELETE FROM friends WHERE friend1 = ? OR friend2 = ? ";
-
-        boolean removed = false;
-        try(PreparedStatement ps = con.prepareStatement(query)) {
-            ps.setString(1, username1);
-            ps.setString(2, username1);
-
-            int rowsAffected = ps.executeUpdate();
-            if (rowsAffected != 0) {
-                removed = true;
+        // One DELETE per column so each can use its own index (the primary key for friend1,
+        // idx_friends_friend2 for friend2), run together in one transaction
+        return inUnitOfWork(() -> {
+            Connection con = this.getConnection();
+
+            boolean removed = false;
+            try(PreparedStatement byFriend1 = con.prepareStatement("DELETE FROM friends WHERE friend1 = ?");
+                PreparedStatement byFriend2 = con.prepareStatement("DELETE FROM friends WHERE friend2 = ?")) {
+                byFriend1.setString(1, username1);
+                byFriend2.setString(1, username1);
+
+                int rowsAffected = byFriend1.executeUpdate() + byFriend2.executeUpdate();
+                if (rowsAffected != 0) {
+                    removed = true;
+                }
+                afterCommit(() -> graph.removeUser(username1));
+            } catch(SQLException e){
+                System.out.println(LocalDateTime.now() + ": An SQLException occurred in removeUserFriends().");
+                System.out.println("Error: " + e.getMessage());
+                e.printStackTrace();
+                // Don't keep one DELETE without the other
+                setRollbackOnly();
             }
-        } catch(SQLException e){
-            System.out.println(LocalDateTime.now() + ": An SQLException occurred in removeUserFriends().");
-            System.out.println("Error: " + e.getMessage());
-            e.printStackTrace();
-        }
-        this.freeConnection(con);
-        return removed;
+            this.freeConnection(con);
+            return removed;
+        });
     }
 
     /**
@@ -136,33 +248,25 @@ public class FriendshipDaoImpl extends MySQLDao implements FriendshipDao {
      */
     @Override
     public ArrayList<Friendship> findFriendshipsByUsername(String username) {
+        long graphVersion = graph.getVersion();
         Connection con = this.getConnection();
         ArrayList<Friendship> friends = new ArrayList<>();
-        String query = "SELECT * FROM friends WHERE friend1 = ? OR friend2 = ?";
+        String query = FRIENDSHIPS_BY_USERNAME;
 
         try(PreparedStatement ps = con.prepareStatement(query)) {
             ps.setString(1, username);
             ps.setString(2, username);
 
             try(ResultSet rs = ps.executeQuery()) {
-                // Get the member's details
-                UserDaoImpl userDao = new UserDaoImpl(getPropertiesFile());
-                User user = userDao.findUserByUsername(username);
-
+                ArrayList<String> friendNames = new ArrayList<>();
                 while (rs.next()) {
-                    // Get the username of the friend
-                    // Need to make sure we're not looking at this user's username
-                    String friend = rs.getString("friend1");
-                    if (friend.equals(username)) {
-                        friend = rs.getString("friend2");
-                    }
-                    // Get the details for the friend of this user
-                    User userFriend = userDao.findUserByUsername(friend);
-
                     // Make a friendship & add it to the list.
-                    Friendship f = new Friendship(user, userFriend);
+                    Friendship f = mapRow(rs);
                     friends.add(f);
+                    friendNames.add(otherUser(f, username));
                 }
+                // This is the user's complete friend list, so the graph can hold on to it
+                graph.load(username, friendNames, graphVersion);
             }
         }  catch(SQLException e){
             System.err.println(LocalDateTime.now() + ": An SQLException occurred in findFriendshipsByUsername().");
@@ -172,6 +276,26 @@ public class FriendshipDaoImpl extends MySQLDao implements FriendshipDao {
         return friends;
     }
 
+    /**
+     * Stream all <code>Friendships</code> for a specific <code>User</code>.
+     * Rows are read from the database as the stream is consumed, so a user
+     * with a very large friend list doesn't need it all in memory at once.
+     *
+     * @param username The name of the user whose <code>Friendships</code> are
+     *                 being retrieved
+     *
+     * @return A <code>Stream</code> of the <code>Friendships</code> attached
+     *         to the supplied username. It holds a database connection until
+     *         it is closed.
+     */
+    @Override
+    public Stream<Friendship> streamFriendshipsByUsername(String username) {
+        return streamQuery("streamFriendshipsByUsername", FRIENDSHIPS_BY_USERNAME, ps -> {
+            ps.setString(1, username);
+            ps.setString(2, username);
+        }, FriendshipDaoImpl::mapRow);
+    }
+
     /**
      * Check for the existance of a <code>Friendship</code> between two users
      *
@@ -186,9 +310,26 @@ public class FriendshipDaoImpl extends MySQLDao implements FriendshipDao {
      */
     @Override
     public Friendship checkFriendshipStatus(String username1, String username2) {
+        // The graph usually knows the answer. If they are friends, the users' details
+        // come from the (cached) user DAO, so only an unknown pair goes to the database.
+        Boolean known = graph.areFriends(username1, username2);
+        if (Boolean.FALSE.equals(known)) {
+            return null;
+        }
+        if (Boolean.TRUE.equals(known) && userDao != null) {
+            Map<String, User> users = userDao.findUsersByUsernames(List.of(username1, username2));
+            User user1 = users.get(username1);
+            User user2 = users.get(username2);
+            if (user1 != null && user2 != null) {
+                return new Friendship(user1, user2);
+            }
+        }
         Connection con = this.getConnection();
+        if (con == null) {
+            return null;
+        }
 
-        String query = "SELECT * FROM friends WHERE (friend1 = ? AND friend2 = ?) OR (friend1 = ? AND friend2 = ?)";
+        String query = FRIENDSHIP_SELECT + "WHERE (f.friend1 = ? AND f.friend2 = ?) OR (f.friend1 = ? AND f.friend2 = ?)";
         Friendship friends = null;
         try(PreparedStatement ps = con.prepareStatement(query)) {
             ps.setString(1, username1);
@@ -198,14 +339,7 @@ public class FriendshipDaoImpl extends MySQLDao implements FriendshipDao {
 
             try(ResultSet rs = ps.executeQuery()) {
                 if (rs.next()) {
-                    String uname1 = rs.getString("friend1");
-                    String uname2 = rs.getString("friend2");
-                    // Get the details of each User in the Friendship based on the usernames
-                    UserDaoImpl userDao = new UserDaoImpl(getPropertiesFile());
-                    User friend1 = userDao.findUserByUsername(uname1);
-                    User friend2 = userDao.findUserByUsername(uname2);
-
-                    friends = new Friendship(friend1, friend2);
+                    friends = mapRow(rs);
                 }
             }
         } catch(SQLException e){
@@ -216,6 +350,96 @@ public class FriendshipDaoImpl extends MySQLDao implements FriendshipDao {
         return friends;     // friends may be null 
     }
 
+    /**
+     * Check whether two users are friends. This is answered from the
+     * in-memory friendship graph where possible; otherwise the friend list of
+     * the first user is read (usernames only) and cached for next time.
+     *
+     * @param username1 User1 in the <code>Friendship</code> (order is
+     *                  irrelevant)
+     * @param username2 User2 in the <code>Friendship</code> (order is
+     *                  irrelevant)
+     *
+     * @return True if a <code>Friendship</code> exists between the two users,
+     *         false otherwise.
+     */
+    @Override
+    public boolean areFriends(String username1, String username2) {
+        Boolean known = graph.areFriends(username1, username2);
+        if (known != null) {
+            return known;
+        }
+        List<String> friendNames = readFriendNames("areFriends", username1);
+        if (friendNames == null) {
+            return false;
+        }
+        for (String friend : friendNames) {
+            if (friend.equalsIgnoreCase(username2)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Retrieve the usernames of all of a <code>User's</code> friends. This
+     * is answered from the in-memory friendship graph where possible;
+     * otherwise the names are read (without the users' details) and cached
+     * for next time.
+     *
+     * @param username The name of the user whose friends are being retrieved
+     *
+     * @return A <code>List</code> of the friends' usernames. This will be
+     *         empty if no friends were found for the supplied username.
+     */
+    @Override
+    public List<String> findFriendNames(String username) {
+        List<String> friendNames = graph.getFriends(username);
+        if (friendNames == null) {
+            friendNames = readFriendNames("findFriendNames", username);
+        }
+        return friendNames == null ? new ArrayList<>() : friendNames;
+    }
+
+    // Read a user's complete friend list (usernames only) and cache it in the graph.
+    // Returns null if it couldn't be read.
+    private List<String> readFriendNames(String caller, String username) {
+        long graphVersion = graph.getVersion();
+        Connection con = this.getConnection();
+        if (con == null) {
+            return null;
+        }
+        String query = "SELECT friend2 AS friend FROM friends WHERE friend1 = ? "
+                + "UNION ALL SELECT friend1 AS friend FROM friends WHERE friend2 = ? AND friend1 <> friend2";
+        ArrayList<String> friendNames = new ArrayList<>();
+        try(PreparedStatement ps = con.prepareStatement(query)) {
+            ps.setString(1, username);
+            ps.setString(2, username);
+
+            try(ResultSet rs = ps.executeQuery()) {
+                while (rs.next()) {
+                    friendNames.add(rs.getString("friend"));
+                }
+                graph.load(username, friendNames, graphVersion);
+            }
+        } catch(SQLException e){
+            System.err.println(LocalDateTime.now() + ": An SQLException occurred in " + caller + "().");
+            System.out.println("Error: " + e.getMessage());
+            friendNames = null;
+        }
+        this.freeConnection(con);
+        return friendNames;
+    }
+
+    // Get the username of the friend of the supplied user in a friendship
+    private static String otherUser(Friendship f, String username) {
+        String friend = f.getUser1().getUsername();
+        if (friend.equalsIgnoreCase(username)) {
+            friend = f.getUser2().getUsername();
+        }
+        return friend;
+    }
+
     public static void main(String[] args) {
         FriendshipDaoImpl friendsDao = new FriendshipDaoImpl("database.properties");
         try {
@@ -0,0 +1,264 @@
+package webpatterns.persistence;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * In-memory cache of the friends table, used to answer "are these two users
+ * friends?" without going to the database.
+ *
+ * Usernames are interned to small int ids, and each cached user's friends
+ * are held as a sorted <code>int[]</code>, so a check is two hash lookups
+ * and a binary search. A user's friend list is cached whole or not at all,
+ * so a cached list that doesn't contain someone is a definite "no".
+ *
+ * Memory is bounded by <code>maxUsers</code> (friend lists kept at once) and
+ * <code>maxFriends</code> (users with more friends than this are never
+ * cached). Interned ids are never reused, so once more than
+ * <code>4 * maxUsers</code> usernames would be interned the whole graph is
+ * cleared and rebuilt on demand. A username is only interned when it goes
+ * into a cached friend list.
+ *
+ * The graph only stays correct if every change to the friends table goes
+ * through the methods below (FriendshipDaoImpl and UserDaoImpl call them).
+ * Reads are lock-free; writes and installs are serialized, and a friend list
+ * loaded from the database is dropped if any write happened while it was
+ * being read.
+ */
+public class FriendshipGraph {
+    private static final int[] NO_FRIENDS = new int[0];
+
+    private final int maxUsers;
+    private final int maxFriends;
+    private final int maxIds;
+    // Replaced as a whole by clear(), so a reader never mixes ids from two generations
+    private volatile State state = new State();
+    // Bumped by every write, so that loads which overlapped a write are discarded
+    private volatile long version;
+
+    public FriendshipGraph() {
+        this(10_000, 5_000);
+    }
+
+    public FriendshipGraph(int maxUsers, int maxFriends) {
+        this.maxUsers = maxUsers;
+        this.maxFriends = maxFriends;
+        this.maxIds = maxUsers * 4;
+    }
+
+    /**
+     * Check for a friendship using only what is cached.
+     *
+     * @return TRUE or FALSE if the friend list of either user is cached, or
+     *         null if the answer isn't known and the database must be asked.
+     *         A null username has no friends.
+     */
+    public Boolean areFriends(String username1, String username2) {
+        if (username1 == null || username2 == null) {
+            return Boolean.FALSE;
+        }
+        State s = state;
+        Integer id1 = s.ids.get(key(username1));
+        Integer id2 = s.ids.get(key(username2));
+        int[] friends = id1 == null ? null : s.adjacency.get(id1);
+        if (friends != null) {
+            return id2 != null && Arrays.binarySearch(friends, id2) >= 0;
+        }
+        friends = id2 == null ? null : s.adjacency.get(id2);
+        if (friends != null) {
+            return id1 != null && Arrays.binarySearch(friends, id1) >= 0;
+        }
+        return null;
+    }
+
+    /**
+     * Get a user's friends using only what is cached.
+     *
+     * @return The usernames of the user's friends if their friend list is
+     *         cached, or null if it must be read from the database.
+     */
+    public List<String> getFriends(String username) {
+        if (username == null) {
+            return null;
+        }
+        State s = state;
+        Integer id = s.ids.get(key(username));
+        int[] friends = id == null ? null : s.adjacency.get(id);
+        if (friends == null) {
+            return null;
+        }
+        List<String> names = new ArrayList<>(friends.length);
+        for (int friend : friends) {
+            names.add(s.names.get(friend));
+        }
+        return names;
+    }
+
+    /**
+     * @return The current write version, to be passed to <code>load</code>
+     *         by a caller about to read a friend list from the database.
+     */
+    public long getVersion() {
+        return version;
+    }
+
+    /**
+     * Cache the complete friend list of a user, as read from the database.
+     *
+     * @param username      The user whose friends were read.
+     * @param friends       All of that user's friends.
+     * @param readAtVersion The value of <code>getVersion()</code> from before
+     *                      the friends were read. If anything has been
+     *                      written since, the list may be stale and is not
+     *                      cached.
+     */
+    public synchronized void load(String username, Collection<String> friends, long readAtVersion) {
+        if (username == null || readAtVersion != version || friends.size() > maxFriends) {
+            return;
+        }
+        State s = roomForIds(friends.size() + 1);
+        int[] friendIds = new int[friends.size()];
+        int i = 0;
+        for (String friend : friends) {
+            friendIds[i++] = s.intern(friend);
+        }
+        Arrays.sort(friendIds);
+        makeRoom(s);
+        s.adjacency.put(s.intern(username), friendIds);
+    }
+
+    public synchronized void addFriendship(String username1, String username2) {
+        if (username1 == null || username2 == null) {
+            return;
+        }
+        version++;
+        State s = state;
+        // Only cached lists need updating, and a user nobody has cached needn't be interned
+        if (!s.isCached(username1) && !s.isCached(username2)) {
+            return;
+        }
+        if (s.ids.size() + 2 > maxIds) {
+            clear();
+            return;
+        }
+        int id1 = s.intern(username1), id2 = s.intern(username2);
+        s.adjacency.computeIfPresent(id1, (k, friends) -> with(friends, id2));
+        s.adjacency.computeIfPresent(id2, (k, friends) -> with(friends, id1));
+        // Drop anyone who has outgrown the limit
+        s.adjacency.values().removeIf(friends -> friends.length > maxFriends);
+    }
+
+    public synchronized void removeFriendship(String username1, String username2) {
+        if (username1 == null || username2 == null) {
+            return;
+        }
+        version++;
+        State s = state;
+        Integer id1 = s.ids.get(key(username1)), id2 = s.ids.get(key(username2));
+        if (id1 != null && id2 != null) {
+            s.adjacency.computeIfPresent(id1, (k, friends) -> without(friends, id2));
+            s.adjacency.computeIfPresent(id2, (k, friends) -> without(friends, id1));
+        }
+    }
+
+    /**
+     * Remove every friendship involving a user (their friends were removed, or
+     * the user was deleted).
+     */
+    public synchronized void removeUser(String username) {
+        if (username == null) {
+            return;
+        }
+        version++;
+        State s = state;
+        Integer id = s.ids.get(key(username));
+        if (id == null) {
+            return;
+        }
+        // The user's own list can't say who else has them cached, so check every list
+        s.adjacency.replaceAll((k, friends) -> without(friends, id));
+        if (!s.adjacency.containsKey(id)) {
+            makeRoom(s);
+        }
+        s.adjacency.put(id, NO_FRIENDS);
+    }
+
+    public synchronized void clear() {
+        version++;
+        state = new State();
+    }
+
+    // The current state if it can intern this many more ids, otherwise a fresh one
+    private State roomForIds(int needed) {
+        if (state.ids.size() + needed > maxIds) {
+            clear();
+        }
+        return state;
+    }
+
+    // Drop arbitrary cached lists until there is room for one more
+    private void makeRoom(State s) {
+        Iterator<Integer> cached = s.adjacency.keySet().iterator();
+        while (s.adjacency.size() >= maxUsers && cached.hasNext()) {
+            cached.next();
+            cached.remove();
+        }
+    }
+
+    // Usernames are compared ignoring case in the database, so they are here too
+    private static String key(String username) {
+        return username.toLowerCase(Locale.ROOT);
+    }
+
+    private static int[] with(int[] friends, int id) {
+        int pos = Arrays.binarySearch(friends, id);
+        if (pos >= 0) {
+            return friends;
+        }
+        int insertAt = -pos - 1;
+        int[] result = new int[friends.length + 1];
+        System.arraycopy(friends, 0, result, 0, insertAt);
+        result[insertAt] = id;
+        System.arraycopy(friends, insertAt, result, insertAt + 1, friends.length - insertAt);
+        return result;
+    }
+
+    private static class State {
+        private final Map<String, Integer> ids = new ConcurrentHashMap<>();
+        private final AtomicInteger nextId = new AtomicInteger();
+        private final Map<Integer, int[]> adjacency = new ConcurrentHashMap<>();
+        // id -> username as first seen, so friend lists can be turned back into names
+        private final Map<Integer, String> names = new ConcurrentHashMap<>();
+
+        private int intern(String username) {
+            return ids.computeIfAbsent(key(username), k -> {
+                int id = nextId.getAndIncrement();
+                names.put(id, username);
+                return id;
+            });
+        }
+
+        private boolean isCached(String username) {
+            Integer id = ids.get(key(username));
+            return id != null && adjacency.containsKey(id);
+        }
+    }
+
+    private static int[] without(int[] friends, int id) {
+        int pos = Arrays.binarySearch(friends, id);
+        if (pos < 0) {
+            return friends;
+        }
+        int[] result = new int[friends.length - 1];
+        System.arraycopy(friends, 0, result, 0, pos);
+        System.arraycopy(friends, pos + 1, result, pos, friends.length - pos - 1);
+        return result;
+    }
+}
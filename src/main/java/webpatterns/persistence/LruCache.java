@@ -0,0 +1,201 @@
+package webpatterns.persistence;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+import java.util.function.ToIntFunction;
+
+/**
+ * A small thread-safe cache bounded both by size (least recently used
+ * entries are evicted first) and by age (entries expire a fixed time after
+ * they were stored). Size is the number of entries, or, for values that
+ * differ a lot in size, the total of a weight given to each value (a value
+ * heavier than the whole limit isn't kept at all).
+ *
+ * A null value is cached like any other, so "no such row" answers can be
+ * cached too. Loading happens outside the cache's lock, so a slow load
+ * never blocks readers of other keys; a loaded value is thrown away rather
+ * than cached if its key was invalidated while it was loading. Invalidating
+ * one key doesn't affect loads of the others.
+ */
+public class LruCache<K, V> {
+    private final long maxWeight;
+    private final ToIntFunction<? super V> weigher;
+    private final long ttlNanos;
+    // Access order, so the eldest entry is the least recently used
+    private final Map<K, Entry<V>> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private long totalWeight;
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    // How many recent invalidations are remembered key by key (see invalidatedAt)
+    private static final int TRACKED_INVALIDATIONS = 10_000;
+
+    // Bumped by every invalidation, and read when a load starts, so a load that overlapped an
+    // invalidation of its key isn't cached
+    private long generation;
+    // Key -> generation at which it was last invalidated, for the most recent invalidations only.
+    // Any key not in here was last invalidated no later than untrackedBefore.
+    private final Map<K, Long> invalidatedAt = new LinkedHashMap<>() {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<K, Long> eldest) {
+            if (size() > TRACKED_INVALIDATIONS) {
+                untrackedBefore = Math.max(untrackedBefore, eldest.getValue());
+                return true;
+            }
+            return false;
+        }
+    };
+    private long untrackedBefore;
+
+    public LruCache(int maxSize, long ttl, TimeUnit unit) {
+        this(maxSize, value -> 1, ttl, unit);
+    }
+
+    /**
+     * @param maxWeight The most the weights of all cached values may add up
+     *                  to.
+     * @param weigher   Gives the weight of a (non-null) value. A null value,
+     *                  or one weighing less than 1, counts as 1.
+     */
+    public LruCache(long maxWeight, ToIntFunction<? super V> weigher, long ttl, TimeUnit unit) {
+        this.maxWeight = maxWeight;
+        this.weigher = weigher;
+        this.ttlNanos = unit.toNanos(ttl);
+    }
+
+    /**
+     * Get the cached value for a key, loading (and caching) it if it isn't
+     * cached or has expired.
+     *
+     * @param key    The key to look up.
+     * @param loader Loads the value on a miss. May return null.
+     *
+     * @return The cached or freshly loaded value (possibly null).
+     */
+    public V get(K key, Function<? super K, ? extends V> loader) {
+        long loadGeneration;
+        synchronized (this) {
+            Entry<V> entry = getEntry(key);
+            if (entry != null) {
+                return entry.value;
+            }
+            loadGeneration = generation;
+        }
+        V value = loader.apply(key);
+        put(key, value, loadGeneration);
+        return value;
+    }
+
+    /**
+     * Get a value only if it is cached and still fresh.
+     *
+     * @return The entry holding the value, or null on a miss.
+     */
+    public synchronized Entry<V> getEntry(K key) {
+        Entry<V> entry = entries.get(key);
+        if (entry != null && entry.expiresAt - System.nanoTime() > 0) {
+            hits.increment();
+            return entry;
+        }
+        if (entry != null) {
+            remove(key);
+        }
+        misses.increment();
+        return null;
+    }
+
+    public synchronized void put(K key, V value) {
+        int weight = value == null ? 1 : Math.max(1, weigher.applyAsInt(value));
+        remove(key);
+        // Keeping it would mean evicting everything else, and then it anyway
+        if (weight > maxWeight) {
+            return;
+        }
+        entries.put(key, new Entry<>(value, System.nanoTime() + ttlNanos, weight));
+        totalWeight += weight;
+        // Least recently used first
+        Iterator<Entry<V>> eldest = entries.values().iterator();
+        while (totalWeight > maxWeight && eldest.hasNext()) {
+            totalWeight -= eldest.next().weight;
+            eldest.remove();
+        }
+    }
+
+    /**
+     * Cache a value loaded by the caller, unless its key was invalidated
+     * since the load began.
+     *
+     * @param loadGeneration The value of <code>getGeneration()</code> from
+     *                       before the value was loaded.
+     */
+    public synchronized void put(K key, V value, long loadGeneration) {
+        Long keyInvalidated = invalidatedAt.get(key);
+        long lastInvalidated = keyInvalidated != null ? keyInvalidated : untrackedBefore;
+        if (lastInvalidated <= loadGeneration) {
+            put(key, value);
+        }
+    }
+
+    public synchronized long getGeneration() {
+        return generation;
+    }
+
+    public synchronized void invalidate(K key) {
+        generation++;
+        remove(key);
+        // Removed first so the key moves to the newest end
+        invalidatedAt.remove(key);
+        invalidatedAt.put(key, generation);
+    }
+
+    public synchronized void clear() {
+        generation++;
+        entries.clear();
+        totalWeight = 0;
+        invalidatedAt.clear();
+        untrackedBefore = generation;
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    // The total weight of the cached values (their number, unless a weigher was given)
+    public synchronized long getWeight() {
+        return totalWeight;
+    }
+
+    public long getHitCount() {
+        return hits.sum();
+    }
+
+    public long getMissCount() {
+        return misses.sum();
+    }
+
+    private void remove(K key) {
+        Entry<V> removed = entries.remove(key);
+        if (removed != null) {
+            totalWeight -= removed.weight;
+        }
+    }
+
+    public static class Entry<V> {
+        private final V value;
+        private final long expiresAt;
+        private final int weight;
+
+        private Entry(V value, long expiresAt, int weight) {
+            this.value = value;
+            this.expiresAt = expiresAt;
+            this.weight = weight;
+        }
+
+        public V getValue() {
+            return value;
+        }
+    }
+}
@@ -0,0 +1,71 @@
+package webpatterns.persistence;
+
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.PriorityQueue;
+
+/**
+ * Merges several iterators, each already sorted in the same order, into one
+ * sorted iterator (a k-way merge).
+ *
+ * Only the next element of each source is held, in a priority queue, so
+ * the sources are read lazily: a source is only advanced when the element
+ * taken from it has been returned and another is asked for. A caller that
+ * stops early (e.g. once a page is full) never reads further than it needs
+ * from any source.
+ */
+public class MergingIterator<T> implements Iterator<T> {
+    private final PriorityQueue<Head<T>> heads;
+    // The source whose head was returned last; advanced on the next call rather than straight away
+    private Iterator<? extends T> toAdvance;
+
+    public MergingIterator(Comparator<? super T> order, Collection<? extends Iterator<? extends T>> sources) {
+        this.heads = new PriorityQueue<>(Math.max(1, sources.size()), (a, b) -> order.compare(a.value, b.value));
+        for (Iterator<? extends T> source : sources) {
+            advance(source);
+        }
+    }
+
+    @Override
+    public boolean hasNext() {
+        advancePending();
+        return !heads.isEmpty();
+    }
+
+    @Override
+    public T next() {
+        advancePending();
+        Head<T> head = heads.poll();
+        if (head == null) {
+            throw new NoSuchElementException();
+        }
+        toAdvance = head.source;
+        return head.value;
+    }
+
+    private void advancePending() {
+        if (toAdvance != null) {
+            Iterator<? extends T> source = toAdvance;
+            toAdvance = null;
+            advance(source);
+        }
+    }
+
+    private void advance(Iterator<? extends T> source) {
+        if (source.hasNext()) {
+            heads.add(new Head<>(source.next(), source));
+        }
+    }
+
+    private static class Head<T> {
+        private final T value;
+        private final Iterator<? extends T> source;
+
+        private Head(T value, Iterator<? extends T> source) {
+            this.value = value;
+            this.source = source;
+        }
+    }
+}
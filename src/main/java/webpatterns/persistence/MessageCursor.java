@@ -0,0 +1,50 @@
+package webpatterns.persistence;
+
+import lombok.AllArgsConstructor;
+import lombok.EqualsAndHashCode;
+import lombok.Getter;
+import lombok.ToString;
+import webpatterns.model.Message;
+import webpatterns.model.MessageSummary;
+
+import java.time.LocalDateTime;
+
+/**
+ * Position in a list of <code>Messages</code> ordered newest first (by
+ * dateSent, then messageID to break ties). A page fetched with a cursor
+ * holds the messages that come strictly after it in that order.
+ *
+ * A null cursor means "start from the newest message".
+ */
+@Getter
+@ToString
+@EqualsAndHashCode
+@AllArgsConstructor
+public class MessageCursor {
+    private LocalDateTime dateSent;
+    private int messageID;
+
+    /**
+     * Build the cursor for the page following the one ending in the supplied
+     * <code>Message</code>.
+     *
+     * @param last The last <code>Message</code> on the current page.
+     *
+     * @return A cursor positioned just after that <code>Message</code>.
+     */
+    public static MessageCursor after(Message last) {
+        return new MessageCursor(last.getTimestamp(), last.getMessageID());
+    }
+
+    /**
+     * Build the cursor for the page following the one ending in the supplied
+     * <code>MessageSummary</code>.
+     *
+     * @param last The last <code>MessageSummary</code> on the current page.
+     *
+     * @return A cursor positioned just after that message.
+     */
+    public static MessageCursor after(MessageSummary last) {
+        return new MessageCursor(last.getTimestamp(), last.getMessageID());
+    }
+}
@@ -3,10 +3,14 @@ package webpatterns.persistence;
 
 
 import webpatterns.model.Message;
+import webpatterns.model.MessageSummary;
 import webpatterns.model.User;
 
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.List;
+import java.util.Map;
+import java.util.stream.Stream;
 
 /**
  *
@@ -26,6 +30,30 @@ public interface MessageDao {
     // Getting the list of all (undeleted) messages received by a specific user
     // This will return an Arraylist of Message objects received by the specified user
     public ArrayList<Message> getReceivedMessagesForUser(String recipientName);
+
+    // Getting one page of the (undeleted) messages sent by a specific user, newest first
+    // This will return up to limit messages that come after the cursor (null for the first page)
+    public ArrayList<Message> getSentMessagesPage(String senderName, MessageCursor after, int limit);
+
+    // Getting one page of the (undeleted) messages received by a specific user, newest first
+    // This will return up to limit messages that come after the cursor (null for the first page)
+    public ArrayList<Message> getReceivedMessagesPage(String recipientName, MessageCursor after, int limit);
+
+    // Getting one page of summaries (everything but the body) of the messages sent by a user, newest first
+    // Use getMessageById to load the full message when it is opened
+    public ArrayList<MessageSummary> getSentMessageSummaries(String senderName, MessageCursor after, int limit);
+
+    // Getting one page of summaries (everything but the body) of the messages received by a user, newest first
+    // Use getMessageById to load the full message when it is opened
+    public ArrayList<MessageSummary> getReceivedMessageSummaries(String recipientName, MessageCursor after, int limit);
+
+    // Getting one page of the conversation between two users (both directions interleaved), newest first
+    // Messages are seen as username sees them, so any they have deleted are left out
+    public ArrayList<Message> getConversation(String username, String otherUser, MessageCursor after, int limit);
+
+    // Getting one page of all the (undeleted) messages a user has sent or received, newest first
+    // This will return up to limit messages that come after the cursor (null for the first page)
+    public ArrayList<Message> getAllMailPage(String username, MessageCursor after, int limit);
     
     // Sending a new message
     // This will return:
@@ -34,10 +62,32 @@ public interface MessageDao {
     //                 -2 if the sender or recipient do not exist on the system and the message cannot be sent
     //                  0 if the message cannot be sent for any other reason
     public int sendMessage(String sender, String recipient, String subject, String body);
+
+    // Sending the same message to every friend of the sender
+    // This will return a map of recipient username to the id of the message sent to them
+    // (empty if the sender has no friends or nothing could be sent)
+    public Map<String, Integer> broadcastToFriends(String sender, String subject, String body);
     
     // Marking a message as read
     // This will return true if the message could be marked as read, false otherwise
     public boolean markMessageAsRead(int messageID, String recipient);
+
+    // The bulk methods below (markMessagesAsRead, markAllMessagesAsRead, deleteMessagesForSender,
+    // deleteMessagesForRecipient and emptySentFolder) all return -1 if the database update failed,
+    // in which case none of the messages were changed
+
+    // Marking many messages as read in one go
+    // Only unread messages received (and not deleted) by the recipient are changed
+    // This will return the number of messages that were marked as read, or -1 if the update failed
+    public int markMessagesAsRead(Collection<Integer> messageIDs, String recipient);
+
+    // Marking every unread (undeleted) message received by a user as read
+    // This will return the number of messages that were marked as read, or -1 if the update failed
+    public int markAllMessagesAsRead(String recipient);
+
+    // Getting the number of unread (undeleted) messages received by a user
+    // This is kept in memory, so it is cheap enough to show on every page
+    public int getUnreadCount(String recipient);
     
     // Marking a sent message as deleted
     // This will set the corresponding message sent by a specific user to "deleted"
@@ -53,9 +103,31 @@ public interface MessageDao {
     // received by the supplied user, it will return false
     public boolean deleteMessageForRecipient(int messageID, String recipient);
 
-//    public ArrayList<Message> searchAllMessages(String username);
+    // Marking many sent messages as deleted in one go
+    // Only messages sent by the sender are changed
+    // This will return the number of messages that were marked as deleted, or -1 if the update failed
+    public int deleteMessagesForSender(Collection<Integer> messageIDs, String sender);
+
+    // Marking many received messages as deleted in one go
+    // Only messages received by the recipient are changed
+    // This will return the number of messages that were marked as deleted, or -1 if the update failed
+    public int deleteMessagesForRecipient(Collection<Integer> messageIDs, String recipient);
+
+    // Marking every message sent by a user as deleted for that user
+    // This will return the number of messages that were marked as deleted, or -1 if the update failed
+    public int emptySentFolder(String sender);
 
     public List<Message> getAllMessages();
 
-//    public Message viewMessageDetails(String message);
+    // Searching the subjects and bodies of the (undeleted) messages a user has sent or received
+    // This will return one page (numbered from 0) of the matching messages, best match first
+    public ArrayList<Message> searchMessages(String username, String query, int page, int pageSize);
+
+    // Streaming all messages in the database, without loading them all into memory
+    // The stream holds a database connection until it is closed, so close it when done
+    public Stream<Message> streamAllMessages();
+
+    // Streaming all (undeleted) messages sent by a specific user, without loading them all into memory
+    // The stream holds a database connection until it is closed, so close it when done
+    public Stream<Message> streamSentMessagesForUser(String senderName);
 }
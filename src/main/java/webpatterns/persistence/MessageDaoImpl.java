@@ -2,26 +2,84 @@ package webpatterns.persistence;
 
 
 
+import lombok.extern.slf4j.Slf4j;
 import webpatterns.model.Message;
+import webpatterns.model.MessageSummary;
 import webpatterns.model.User;
 
 import java.sql.*;
 import java.time.LocalDateTime;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
 
 /**
  *
  * @author michelle
  */
+@Slf4j
 public class MessageDaoImpl extends MySQLDao implements MessageDao {
+    // Upper bound on the number of message ids sent in one IN (...) list
+    private static final int IN_CHUNK_SIZE = 500;
+
+    // Newest first (Message's natural order), ties broken by id as MessageCursor expects
+    private static final Comparator<Message> MAILBOX_ORDER = Comparator.<Message>naturalOrder()
+            .thenComparing(Message::getMessageID, Comparator.reverseOrder());
+
+    // MySQL's error for a MATCH with no FULLTEXT index covering its columns
+    private static final int ER_FT_MATCHING_KEY_NOT_FOUND = 1191;
+    // Upper bound on the messages held, across every cached mailbox index
+    private static final int MAX_INDEXED_MESSAGES = 100_000;
+
+    // Unread messages per recipient, kept up to date by every change made here
+    private final UnreadCounter unreadCounter;
+    // Friendship checks and friend lists, answered from the in-memory friendship graph where possible
+    private final FriendshipDao friendshipDao;
+    // Words of each recently searched user's mailbox, for searching without a FULLTEXT index.
+    // Bounded by the number of messages indexed, since one mailbox can hold far more than another.
+    private final LruCache<String, TextIndex> mailboxIndexes =
+            new LruCache<>(MAX_INDEXED_MESSAGES, TextIndex::size, 10, TimeUnit.MINUTES);
+    // Cleared once MySQL reports there is no FULLTEXT index to search
+    private volatile boolean fullTextSearch = true;
+
     public MessageDaoImpl(String propertiesFile) {
         super(propertiesFile);
+        this.unreadCounter = new UnreadCounter();
+        this.friendshipDao = new FriendshipDaoImpl(propertiesFile);
     }
 
     public MessageDaoImpl(Connection conn){
         super(conn);
+        this.unreadCounter = new UnreadCounter();
+        this.friendshipDao = new FriendshipDaoImpl(conn);
+    }
+
+    public MessageDaoImpl(ConnectionPool pool, UnreadCounter unreadCounter, FriendshipDao friendshipDao){
+        super(pool);
+        this.unreadCounter = unreadCounter;
+        this.friendshipDao = friendshipDao;
+    }
+
+    // The columns a MessageSummary needs, i.e. all but the body
+    private static final String SUMMARY_COLUMNS = "messageID, sender, recipient, subject, readStatus, dateSent";
+
+    private static MessageSummary mapSummaryRow(ResultSet rs) throws SQLException {
+        return new MessageSummary(rs.getInt("messageID"), rs.getString("sender"), rs.getString("recipient"),
+                rs.getString("subject"), rs.getBoolean("readStatus"), rs.getTimestamp("dateSent").toLocalDateTime());
     }
 
     private static Message mapRow(ResultSet rs) throws SQLException {
@@ -116,6 +174,267 @@ public class MessageDaoImpl extends MySQLDao implements MessageDao {
         return receivedMessages;
     }
 
+    /**
+     * Retrieve one page of the <code>Messages</code> sent by a specific
+     * <code>User</code>, newest first.
+     *
+     * @param senderName The username of the <code>User</code> whose sent
+     *                   <code>Messages</code> are being retrieved
+     * @param after      The cursor for the end of the previous page, or null
+     *                   for the first page
+     * @param limit      The maximum number of <code>Messages</code> to return
+     *
+     * @return An <code>ArrayList</code> of at most <code>limit</code>
+     *         <code>Messages</code>, ordered by date sent (newest first). Use
+     *         <code>MessageCursor.after()</code> on the last one to get the
+     *         next page.
+     */
+    @Override
+    public ArrayList<Message> getSentMessagesPage(String senderName, MessageCursor after, int limit) {
+        return getMailboxPage("*", MessageDaoImpl::mapRow, "sender", "deletedForSender", senderName, after, limit);
+    }
+
+    /**
+     * Retrieve one page of the <code>Messages</code> received by a specific
+     * <code>User</code>, newest first.
+     *
+     * @param recipientName The username of the <code>User</code> whose
+     *                      received <code>Messages</code> are being retrieved
+     * @param after         The cursor for the end of the previous page, or
+     *                      null for the first page
+     * @param limit         The maximum number of <code>Messages</code> to
+     *                      return
+     *
+     * @return An <code>ArrayList</code> of at most <code>limit</code>
+     *         <code>Messages</code>, ordered by date sent (newest first). Use
+     *         <code>MessageCursor.after()</code> on the last one to get the
+     *         next page.
+     */
+    @Override
+    public ArrayList<Message> getReceivedMessagesPage(String recipientName, MessageCursor after, int limit) {
+        return getMailboxPage("*", MessageDaoImpl::mapRow, "recipient", "deletedForRecipient", recipientName,
+                after, limit);
+    }
+
+    /**
+     * Retrieve one page of summaries of the <code>Messages</code> sent by a
+     * specific <code>User</code>, newest first. The message bodies are not
+     * read, which keeps listing a mailbox cheap; use
+     * <code>getMessageById</code> to load a <code>Message</code> in full.
+     *
+     * @param senderName The username of the <code>User</code> whose sent
+     *                   <code>Messages</code> are being retrieved
+     * @param after      The cursor for the end of the previous page, or null
+     *                   for the first page
+     * @param limit      The maximum number of summaries to return
+     *
+     * @return An <code>ArrayList</code> of at most <code>limit</code>
+     *         <code>MessageSummaries</code>, ordered by date sent (newest
+     *         first).
+     */
+    @Override
+    public ArrayList<MessageSummary> getSentMessageSummaries(String senderName, MessageCursor after, int limit) {
+        return getMailboxPage(SUMMARY_COLUMNS, MessageDaoImpl::mapSummaryRow, "sender", "deletedForSender",
+                senderName, after, limit);
+    }
+
+    /**
+     * Retrieve one page of summaries of the <code>Messages</code> received by
+     * a specific <code>User</code>, newest first. The message bodies are not
+     * read, which keeps listing a mailbox cheap; use
+     * <code>getMessageById</code> to load a <code>Message</code> in full.
+     *
+     * @param recipientName The username of the <code>User</code> whose
+     *                      received <code>Messages</code> are being retrieved
+     * @param after         The cursor for the end of the previous page, or
+     *                      null for the first page
+     * @param limit         The maximum number of summaries to return
+     *
+     * @return An <code>ArrayList</code> of at most <code>limit</code>
+     *         <code>MessageSummaries</code>, ordered by date sent (newest
+     *         first).
+     */
+    @Override
+    public ArrayList<MessageSummary> getReceivedMessageSummaries(String recipientName, MessageCursor after,
+                                                                 int limit) {
+        return getMailboxPage(SUMMARY_COLUMNS, MessageDaoImpl::mapSummaryRow, "recipient", "deletedForRecipient",
+                recipientName, after, limit);
+    }
+
+    /**
+     * Retrieve one page of the conversation between two <code>Users</code>:
+     * the <code>Messages</code> each has sent the other, interleaved newest
+     * first. Messages are returned as the first user sees them, so those they
+     * have deleted (as sender or as recipient) are left out.
+     *
+     * Each direction is read as its own page off the (sender, recipient,
+     * dateSent) index and the two are merged, so the cost depends on the page
+     * size rather than on the size of either mailbox.
+     *
+     * @param username  The username of the <code>User</code> viewing the
+     *                  conversation
+     * @param otherUser The username of the other <code>User</code> in it
+     * @param after     The cursor for the end of the previous page, or null
+     *                  for the first page
+     * @param limit     The maximum number of <code>Messages</code> to return
+     *
+     * @return An <code>ArrayList</code> of at most <code>limit</code>
+     *         <code>Messages</code>, ordered by date sent (newest first). Use
+     *         <code>MessageCursor.after()</code> on the last one to get the
+     *         next page.
+     */
+    @Override
+    public ArrayList<Message> getConversation(String username, String otherUser, MessageCursor after, int limit) {
+        ArrayList<Message> messages = new ArrayList<>();
+        if (limit <= 0) {
+            return messages;
+        }
+        Connection con = this.getConnection();
+
+        String cursor = after == null ? "" : " AND (dateSent < ? OR (dateSent = ? AND messageID < ?))";
+        String query = "(SELECT * FROM messages WHERE sender = ? AND recipient = ? AND deletedForSender = FALSE"
+                + cursor + " ORDER BY dateSent DESC, messageID DESC LIMIT ?) "
+                + "UNION ALL "
+                + "(SELECT * FROM messages WHERE sender = ? AND recipient = ? AND deletedForRecipient = FALSE"
+                + cursor + " ORDER BY dateSent DESC, messageID DESC LIMIT ?) "
+                + "ORDER BY dateSent DESC, messageID DESC LIMIT ?";
+        try (PreparedStatement ps = con.prepareStatement(query)) {
+            int i = 1;
+            // Sent by the viewer, then received by them
+            for (String[] direction : new String[][]{{username, otherUser}, {otherUser, username}}) {
+                ps.setString(i++, direction[0]);
+                ps.setString(i++, direction[1]);
+                if (after != null) {
+                    Timestamp dateSent = Timestamp.valueOf(after.getDateSent());
+                    ps.setTimestamp(i++, dateSent);
+                    ps.setTimestamp(i++, dateSent);
+                    ps.setInt(i++, after.getMessageID());
+                }
+                ps.setInt(i++, limit);
+            }
+            ps.setInt(i, limit);
+
+            try (ResultSet rs = ps.executeQuery()) {
+                while (rs.next()) {
+                    messages.add(mapRow(rs));
+                }
+            }
+        } catch (SQLException e) {
+            System.err.println(LocalDateTime.now() + ": An SQLException occurred in getConversation().");
+            System.out.println("Error: " + e.getMessage());
+        }
+        this.freeConnection(con);
+        return messages;
+    }
+
+    /**
+     * Retrieve one page of everything in a <code>User's</code> mailbox: the
+     * <code>Messages</code> they have sent and received (and not deleted),
+     * together, newest first.
+     *
+     * The sent and received sides are read as two cursors, each in index
+     * order, and merged as they are read; the merge stops as soon as the page
+     * is full, so neither side is read past the page.
+     *
+     * @param username The username of the <code>User</code> whose mailbox is
+     *                 being retrieved
+     * @param after    The cursor for the end of the previous page, or null
+     *                 for the first page
+     * @param limit    The maximum number of <code>Messages</code> to return
+     *
+     * @return An <code>ArrayList</code> of at most <code>limit</code>
+     *         <code>Messages</code>, ordered by date sent (newest first). Use
+     *         <code>MessageCursor.after()</code> on the last one to get the
+     *         next page.
+     */
+    @Override
+    public ArrayList<Message> getAllMailPage(String username, MessageCursor after, int limit) {
+        ArrayList<Message> page = new ArrayList<>();
+        if (limit <= 0) {
+            return page;
+        }
+        Iterator<Message> merged = new MergingIterator<>(MAILBOX_ORDER, List.of(
+                mailboxCursor("sender", "deletedForSender", username, after, limit),
+                mailboxCursor("recipient", "deletedForRecipient", username, after, limit)));
+        while (page.size() < limit && merged.hasNext()) {
+            Message m = merged.next();
+            // A message to oneself would be on both sides; equal messages come out next to each other
+            if (page.isEmpty() || page.get(page.size() - 1).getMessageID() != m.getMessageID()) {
+                page.add(m);
+            }
+        }
+        return page;
+    }
+
+    // Walks one side of a user's mailbox newest first, reading a page of chunkSize messages at a
+    // time and only when the previous one has been used up
+    private Iterator<Message> mailboxCursor(String ownerColumn, String deletedColumn, String username,
+                                            MessageCursor start, int chunkSize) {
+        return new Iterator<>() {
+            private MessageCursor position = start;
+            private Iterator<Message> current = Collections.emptyIterator();
+            private boolean exhausted;
+
+            @Override
+            public boolean hasNext() {
+                if (!current.hasNext() && !exhausted) {
+                    ArrayList<Message> chunk = getMailboxPage("*", MessageDaoImpl::mapRow, ownerColumn, deletedColumn,
+                            username, position, chunkSize);
+                    exhausted = chunk.size() < chunkSize;
+                    if (!chunk.isEmpty()) {
+                        position = MessageCursor.after(chunk.get(chunk.size() - 1));
+                    }
+                    current = chunk.iterator();
+                }
+                return current.hasNext();
+            }
+
+            @Override
+            public Message next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                return current.next();
+            }
+        };
+    }
+
+    // Shared by the sent and received pages, full or summarised. The (owner, deleted flag, dateSent)
+    // indexes on messages let MySQL read the page straight off the index in order, with no sort step.
+    private <T> ArrayList<T> getMailboxPage(String columns, ResultSetStream.RowMapper<T> mapper, String ownerColumn,
+                                            String deletedColumn, String username, MessageCursor after, int limit) {
+        ArrayList<T> messages = new ArrayList<>();
+        Connection con = this.getConnection();
+
+        String query = "SELECT " + columns + " FROM messages "
+                + "WHERE " + ownerColumn + " = ? AND " + deletedColumn + " = FALSE"
+                + (after == null ? "" : " AND (dateSent < ? OR (dateSent = ? AND messageID < ?))")
+                + " ORDER BY dateSent DESC, messageID DESC LIMIT ?";
+        try (PreparedStatement ps = con.prepareStatement(query)) {
+            int i = 1;
+            ps.setString(i++, username);
+            if (after != null) {
+                Timestamp dateSent = Timestamp.valueOf(after.getDateSent());
+                ps.setTimestamp(i++, dateSent);
+                ps.setTimestamp(i++, dateSent);
+                ps.setInt(i++, after.getMessageID());
+            }
+            ps.setInt(i, limit);
+
+            try (ResultSet rs = ps.executeQuery()) {
+                while (rs.next()) {
+                    messages.add(mapper.map(rs));
+                }
+            }
+        } catch (SQLException e) {
+            System.err.println(LocalDateTime.now() + ": An SQLException occurred while getting a page of messages " +
+                    "by " + ownerColumn);
+            System.out.println("Error: " + e.getMessage());
+        }
+        this.freeConnection(con);
+        return messages;
+    }
+
     /**
      * Get a specific <code>Message</code> based on its ID number.
      *
@@ -152,6 +471,14 @@ public class MessageDaoImpl extends MySQLDao implements MessageDao {
      * <code>Message</code> to the database with the current time as its
      * timestamp
      *
+     * The friendship is checked first through the friendship DAO, which
+     * usually answers from the in-memory friendship graph; users it knows
+     * aren't friends cost no insert. The insert itself is an INSERT ...
+     * SELECT that checks the friendship again, so a message is only ever
+     * written while the friendship exists (a friendship also implies both
+     * users exist). The users are only looked up when nothing was inserted,
+     * to work out which error code to return.
+     *
      * @param sender    Sender of the <code>Message</code> (a username)
      * @param recipient Recipient of the <code>Message</code> (a username)
      * @param subject   The subject line for the <code>Message</code>
@@ -167,47 +494,130 @@ public class MessageDaoImpl extends MySQLDao implements MessageDao {
      */
     @Override
     public int sendMessage(String sender, String recipient, String subject, String body) {
-        // Confirm that the sender and recipient users exist in the system before
-        // trying to send them a message
-        UserDaoImpl userDao = new UserDaoImpl(getPropertiesFile());
-        if (userDao.findUserByUsername(sender) != null && userDao.findUserByUsername(recipient) != null) {
-            // Check if there is a Friendship established between the sender and recipient
-            FriendshipDaoImpl friendshipDao = new FriendshipDaoImpl(getPropertiesFile());
-            // If a Friendship is found between the two, continue to try and send the new message
-            if (friendshipDao.checkFriendshipStatus(sender, recipient) != null) {
-                Connection con = this.getConnection();
-
-                int returnValue = 0;
-                String query = "INSERT INTO messages(sender, recipient, subject, body, dateSent) VALUES (?, ?, ?, ?, CURRENT_TIMESTAMP())";
-                try(PreparedStatement ps = con.prepareStatement(query, Statement.RETURN_GENERATED_KEYS)) {
-                    ps.setString(1, sender);
-                    ps.setString(2, recipient);
-                    ps.setString(3, subject);
-                    ps.setString(4, body);
-
-                    ps.executeUpdate();
-
-                    try(ResultSet generatedKeys = ps.getGeneratedKeys()) {
-                        if (generatedKeys.next()) {
-                            returnValue = generatedKeys.getInt(1);
-                        }
+        boolean friends = friendshipDao.areFriends(sender, recipient);
+        Connection con = this.getConnection();
+        if (con == null) {
+            return 0;
+        }
+        if (!friends) {
+            int returnValue = 0;
+            try {
+                returnValue = usersExist(con, sender, recipient) ? -1 : -2;
+            } catch (SQLException e) {
+                System.err.println(LocalDateTime.now() + ": An SQLException occurred while adding a Message.");
+                System.out.println("Error: " + e.getMessage());
+            }
+            this.freeConnection(con);
+            return returnValue;
+        }
+
+        int returnValue = 0;
+        String query = "INSERT INTO messages(sender, recipient, subject, body, dateSent) " +
+                "SELECT ?, ?, ?, ?, CURRENT_TIMESTAMP() FROM friends " +
+                "WHERE (friend1 = ? AND friend2 = ?) OR (friend1 = ? AND friend2 = ?)";
+        try(PreparedStatement ps = con.prepareStatement(query, Statement.RETURN_GENERATED_KEYS)) {
+            ps.setString(1, sender);
+            ps.setString(2, recipient);
+            ps.setString(3, subject);
+            ps.setString(4, body);
+            ps.setString(5, sender);
+            ps.setString(6, recipient);
+            ps.setString(7, recipient);
+            ps.setString(8, sender);
+
+            int rowsAffected = ps.executeUpdate();
+
+            if (rowsAffected == 0) {
+                // Nothing was sent, so find out why. If both users exist they can't be friends
+                returnValue = usersExist(con, sender, recipient) ? -1 : -2;
+            } else {
+                try(ResultSet generatedKeys = ps.getGeneratedKeys()) {
+                    if (generatedKeys.next()) {
+                        returnValue = generatedKeys.getInt(1);
                     }
-                } catch(SQLIntegrityConstraintViolationException e){
-                    System.err.println(LocalDateTime.now() + ": An integrity constraint failed while adding a " +
-                            "Message" + "." + ".");
-                    System.out.println("Error: " + e.getMessage());
-                }catch(SQLException e){
-                    System.err.println(LocalDateTime.now() + ": An SQLException occurred while adding a Message." +
-                            ".");
-                    System.out.println("Error: " + e.getMessage());
                 }
-                this.freeConnection(con);
-                return returnValue;
-            } else { // No friendship exists between the sender and recipient, so return -1 as error code{
-                return -1;
+                adjustUnreadCount(recipient, 1);
+                forgetMailboxIndexes(sender, recipient);
+            }
+        } catch(SQLIntegrityConstraintViolationException e){
+            System.err.println(LocalDateTime.now() + ": An integrity constraint failed while adding a " +
+                    "Message" + "." + ".");
+            System.out.println("Error: " + e.getMessage());
+        }catch(SQLException e){
+            System.err.println(LocalDateTime.now() + ": An SQLException occurred while adding a Message." +
+                    ".");
+            System.out.println("Error: " + e.getMessage());
+        }
+        this.freeConnection(con);
+        return returnValue;
+    }
+
+    /**
+     * Send the same <code>Message</code> to every friend of the sender. The
+     * friend list comes from the friendship DAO (usually straight from the
+     * in-memory friendship graph), and the messages are written with batched
+     * inserts, all in a single transaction, instead of a
+     * <code>sendMessage</code> call (and its checks) per friend. As in
+     * <code>sendMessage</code>, each insert only goes through if the
+     * friendship is in the friends table, so a friendship removed meanwhile
+     * doesn't get the <code>Message</code>.
+     *
+     * @param sender  Sender of the <code>Messages</code> (a username)
+     * @param subject The subject line for the <code>Messages</code>
+     * @param body    The body/content of the <code>Messages</code>
+     *
+     * @return A map of each recipient's username to the ID of the
+     *         <code>Message</code> sent to them. This is empty if the sender
+     *         has no friends (or doesn't exist), and leaves out any recipient
+     *         the <code>Message</code> couldn't be sent to.
+     */
+    @Override
+    public Map<String, Integer> broadcastToFriends(String sender, String subject, String body) {
+        return inUnitOfWork(() -> {
+            List<String> friends = friendshipDao.findFriendNames(sender);
+            Map<String, Integer> sent = new LinkedHashMap<>();
+
+            String query = "INSERT INTO messages(sender, recipient, subject, body, dateSent) " +
+                    "SELECT ?, ?, ?, ?, CURRENT_TIMESTAMP() FROM friends " +
+                    "WHERE (friend1 = ? AND friend2 = ?) OR (friend1 = ? AND friend2 = ?)";
+            insertInBatches("broadcastToFriends", query, friends, true, (ps, recipient) -> {
+                ps.setString(1, sender);
+                ps.setString(2, recipient);
+                ps.setString(3, subject);
+                ps.setString(4, body);
+                ps.setString(5, sender);
+                ps.setString(6, recipient);
+                ps.setString(7, recipient);
+                ps.setString(8, sender);
+            }, new BatchListener() {
+                @Override
+                public void inserted(int row, int generatedKey) {
+                    sent.put(friends.get(row), generatedKey);
+                    adjustUnreadCount(friends.get(row), 1);
+                    forgetMailboxIndexes(friends.get(row));
+                }
+
+                @Override
+                public void failed(int row, String reason) {
+                    log.warn("Unable to send a broadcast Message from {} to {}: {}", sender, friends.get(row),
+                            NOTHING_INSERTED.equals(reason) ? "they are no longer friends" : reason);
+                }
+            });
+            forgetMailboxIndexes(sender);
+            return sent;
+        });
+    }
+
+    // Check that both of the supplied usernames are registered on the system
+    private static boolean usersExist(Connection con, String username1, String username2) throws SQLException {
+        String query = "SELECT COUNT(*) FROM users WHERE username IN (?, ?)";
+        try(PreparedStatement ps = con.prepareStatement(query)) {
+            ps.setString(1, username1);
+            ps.setString(2, username2);
+            try(ResultSet rs = ps.executeQuery()) {
+                int expected = username1.equalsIgnoreCase(username2) ? 1 : 2;
+                return rs.next() && rs.getInt(1) >= expected;
             }
-        } else { // Either the sender or the recipient don't exist in the syste, so return -2 as error code
-            return -2;
         }
     }
 
@@ -227,23 +637,31 @@ public class MessageDaoImpl extends MySQLDao implements MessageDao {
      */
     @Override
     public boolean markMessageAsRead(int messageID, String recipient) {
-        Connection con = null;
-        PreparedStatement ps = null;
-        int rowsAffected = 0;
-
-        try {
-            con = this.getConnection();
+        // Try the change that affects the unread count first. Only if that doesn't apply (the
+        // message is already read, deleted or not theirs) is the unconditional update needed.
+        String query = "UPDATE messages SET readStatus = TRUE WHERE messageID = ? AND recipient = ?";
+        if (updateMessage("markMessageAsRead", query + " AND readStatus = FALSE AND deletedForRecipient = FALSE",
+                messageID, recipient)) {
+            adjustUnreadCount(recipient, -1);
+            return true;
+        }
+        return updateMessage("markMessageAsRead", query, messageID, recipient);
+    }
 
-            String query = "UPDATE messages SET readStatus = TRUE WHERE messageID = ? AND recipient = ?";
-            ps = con.prepareStatement(query);
+    // Run an update on a single message that takes its id and the owner's username
+    private boolean updateMessage(String caller, String query, int messageID, String owner) {
+        Connection con = this.getConnection();
+        int rowsAffected = 0;
+        try (PreparedStatement ps = con.prepareStatement(query)) {
             ps.setInt(1, messageID);
-            ps.setString(2, recipient);
+            ps.setString(2, owner);
 
             rowsAffected = ps.executeUpdate();
         } catch(SQLException e){
-            System.err.println(LocalDateTime.now() + ": An SQLException occurred in markMessageAsRead().");
+            System.err.println(LocalDateTime.now() + ": An SQLException occurred in " + caller + "().");
             System.out.println("Error: " + e.getMessage());
         }
+        this.freeConnection(con);
         return rowsAffected == 1;
     }
 
@@ -277,6 +695,10 @@ public class MessageDaoImpl extends MySQLDao implements MessageDao {
             System.err.println(LocalDateTime.now() + ": An SQLException occurred in deleteMessageForSender().");
             System.out.println("Error: " + e.getMessage());
         }
+        this.freeConnection(con);
+        if (rowsAffected == 1) {
+            forgetMailboxIndexes(sender);
+        }
         return rowsAffected == 1;
     }
 
@@ -297,34 +719,276 @@ public class MessageDaoImpl extends MySQLDao implements MessageDao {
      */
     @Override
     public boolean deleteMessageForRecipient(int messageID, String recipient) {
-        Connection con = this.getConnection();
-        int rowsAffected = 0;
-
+        // As in markMessageAsRead, the change that affects the unread count is tried first
         String query = "UPDATE messages SET deletedForRecipient = TRUE WHERE messageID = ? AND recipient = ?";
-        try(PreparedStatement ps = con.prepareStatement(query)) {
-            ps.setInt(1, messageID);
-            ps.setString(2, recipient);
+        if (updateMessage("deleteMessageForRecipient",
+                query + " AND readStatus = FALSE AND deletedForRecipient = FALSE", messageID, recipient)) {
+            adjustUnreadCount(recipient, -1);
+            forgetMailboxIndexes(recipient);
+            return true;
+        }
+        if (updateMessage("deleteMessageForRecipient", query, messageID, recipient)) {
+            forgetMailboxIndexes(recipient);
+            return true;
+        }
+        return false;
+    }
 
-            rowsAffected = ps.executeUpdate();
-        } catch(SQLException e){
-            System.err.println(LocalDateTime.now() + ": An SQLException occurred in deleteMessageForRecipient().");
+    /**
+     * Mark many <code>Messages</code> as read with one UPDATE per 500 ids,
+     * rather than one per <code>Message</code>. Only unread
+     * <code>Messages</code> received (and not deleted) by the specified
+     * recipient are amended.
+     *
+     * @param messageIDs The ID numbers of the <code>Messages</code> to be
+     *                   marked as read
+     * @param recipient  The username of the recipient <code>User</code>
+     *
+     * @return The number of <code>Messages</code> that were marked as read,
+     *         or -1 if the update failed (none were changed).
+     */
+    @Override
+    public int markMessagesAsRead(Collection<Integer> messageIDs, String recipient) {
+        int marked = updateOwnedMessages("markMessagesAsRead", "readStatus = TRUE", "recipient",
+                "readStatus = FALSE AND deletedForRecipient = FALSE", messageIDs, recipient);
+        if (marked > 0) {
+            adjustUnreadCount(recipient, -marked);
+        }
+        return marked;
+    }
+
+    /**
+     * Mark every unread, undeleted <code>Message</code> received by a user as
+     * read, in a single UPDATE.
+     *
+     * @param recipient The username of the recipient <code>User</code>
+     *
+     * @return The number of <code>Messages</code> that were marked as read,
+     *         or -1 if the update failed.
+     */
+    @Override
+    public int markAllMessagesAsRead(String recipient) {
+        String query = "UPDATE messages SET readStatus = TRUE " +
+                "WHERE recipient = ? AND deletedForRecipient = FALSE AND readStatus = FALSE";
+        int marked = updateMailbox("markAllMessagesAsRead", query, recipient);
+        if (marked > 0) {
+            adjustUnreadCount(recipient, -marked);
+        }
+        return marked;
+    }
+
+    /**
+     * Mark many <code>Messages</code> as deleted for the sender with one
+     * UPDATE per 500 ids. Only <code>Messages</code> sent by the specified
+     * sender are amended.
+     *
+     * @param messageIDs The ID numbers of the <code>Messages</code> to be
+     *                   marked as deleted for the sender
+     * @param sender     The username of the sending <code>User</code>
+     *
+     * @return The number of <code>Messages</code> that were marked as deleted,
+     *         or -1 if the update failed (none were changed).
+     */
+    @Override
+    public int deleteMessagesForSender(Collection<Integer> messageIDs, String sender) {
+        int deleted = updateOwnedMessages("deleteMessagesForSender", "deletedForSender = TRUE", "sender",
+                "deletedForSender = FALSE", messageIDs, sender);
+        if (deleted > 0) {
+            forgetMailboxIndexes(sender);
+        }
+        return deleted;
+    }
+
+    /**
+     * Mark many <code>Messages</code> as deleted for the recipient with one
+     * UPDATE per 500 ids. Only <code>Messages</code> received by the specified
+     * recipient are amended.
+     *
+     * @param messageIDs The ID numbers of the <code>Messages</code> to be
+     *                   marked as deleted for the recipient
+     * @param recipient  The username of the receiving <code>User</code>
+     *
+     * @return The number of <code>Messages</code> that were marked as deleted,
+     *         or -1 if the update failed (none were changed).
+     */
+    @Override
+    public int deleteMessagesForRecipient(Collection<Integer> messageIDs, String recipient) {
+        // Unread messages are deleted separately so the unread count knows how many went. Both
+        // updates are kept or neither is, and the count only changes once they are committed.
+        int deleted = inUnitOfWork(() -> {
+            int unread = updateOwnedMessages("deleteMessagesForRecipient", "deletedForRecipient = TRUE",
+                    "recipient", "readStatus = FALSE AND deletedForRecipient = FALSE", messageIDs, recipient);
+            if (unread < 0) {
+                return -1;
+            }
+            int read = updateOwnedMessages("deleteMessagesForRecipient", "deletedForRecipient = TRUE",
+                    "recipient", "deletedForRecipient = FALSE", messageIDs, recipient);
+            if (read < 0) {
+                setRollbackOnly();
+                return -1;
+            }
+            adjustUnreadCount(recipient, -unread);
+            return unread + read;
+        });
+        if (deleted > 0) {
+            forgetMailboxIndexes(recipient);
+        }
+        return deleted;
+    }
+
+    /**
+     * Mark every <code>Message</code> sent by a user as deleted for that user,
+     * in a single UPDATE.
+     *
+     * @param sender The username of the sending <code>User</code>
+     *
+     * @return The number of <code>Messages</code> that were marked as deleted,
+     *         or -1 if the update failed.
+     */
+    @Override
+    public int emptySentFolder(String sender) {
+        String query = "UPDATE messages SET deletedForSender = TRUE WHERE sender = ? AND deletedForSender = FALSE";
+        int deleted = updateMailbox("emptySentFolder", query, sender);
+        if (deleted > 0) {
+            forgetMailboxIndexes(sender);
+        }
+        return deleted;
+    }
+
+    // Apply an update to a set of messages, but only those the owner sent/received. Large sets are
+    // split into chunks, all applied in one unit of work so the change is all or nothing.
+    // Returns -1 if the update failed (and nothing was changed).
+    private int updateOwnedMessages(String caller, String setClause, String ownerColumn, String condition,
+                                    Collection<Integer> messageIDs, String owner) {
+        List<Integer> ids = new ArrayList<>(new LinkedHashSet<>(messageIDs));
+        if (ids.isEmpty()) {
+            return 0;
+        }
+        return inUnitOfWork(() -> {
+            int rowsAffected = 0;
+            Connection con = this.getConnection();
+            if (con == null) {
+                return -1;
+            }
+            try {
+                for (int from = 0; from < ids.size(); from += IN_CHUNK_SIZE) {
+                    List<Integer> chunk = ids.subList(from, Math.min(from + IN_CHUNK_SIZE, ids.size()));
+                    String query = "UPDATE messages SET " + setClause + " WHERE " + ownerColumn + " = ? " +
+                            "AND " + condition + " AND messageID IN (" + UserDaoImpl.placeholders(chunk.size()) + ")";
+                    try (PreparedStatement ps = con.prepareStatement(query)) {
+                        ps.setString(1, owner);
+                        for (int i = 0; i < chunk.size(); i++) {
+                            ps.setInt(i + 2, chunk.get(i));
+                        }
+                        rowsAffected += ps.executeUpdate();
+                    }
+                }
+            } catch (SQLException e) {
+                System.err.println(LocalDateTime.now() + ": An SQLException occurred in " + caller + "().");
+                System.out.println("Error: " + e.getMessage());
+                // Don't keep the chunks that did go through
+                setRollbackOnly();
+                rowsAffected = -1;
+            }
+            this.freeConnection(con);
+            return rowsAffected;
+        });
+    }
+
+    /**
+     * Get the number of unread <code>Messages</code> a user has received
+     * (and not deleted). The count is kept in memory and updated by every
+     * change made through this DAO, so this only queries the database the
+     * first time it is asked for a user.
+     *
+     * @param recipient The username of the recipient <code>User</code>
+     *
+     * @return The number of unread <code>Messages</code>.
+     */
+    @Override
+    public int getUnreadCount(String recipient) {
+        if (recipient == null) {
+            return 0;
+        }
+        return unreadCounter.get(recipient, this::countUnreadMessages);
+    }
+
+    // Returns -1 if the count couldn't be read, so it isn't mistaken for 0
+    private int countUnreadMessages(String recipient) {
+        Map<String, Integer> counts = countUnreadMessages(List.of(recipient));
+        return counts == null ? -1 : counts.getOrDefault(recipient, 0);
+    }
+
+    // Change the in-memory unread count once the change it mirrors is committed
+    private void adjustUnreadCount(String recipient, int delta) {
+        if (delta != 0) {
+            afterCommit(() -> unreadCounter.add(recipient, delta));
+        }
+    }
+
+    /**
+     * Count the unread, undeleted <code>Messages</code> of many users in the
+     * database, with one query per 500 users. Used to correct the in-memory
+     * unread counts.
+     *
+     * @param recipients The usernames of the users to count for.
+     *
+     * @return A map of username to unread count (keys compared ignoring case).
+     *         Users with no unread <code>Messages</code> may have no entry.
+     *         Null if the counts could not be read.
+     */
+    public Map<String, Integer> countUnreadMessages(Collection<String> recipients) {
+        Map<String, Integer> counts = new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
+        List<String> names = new ArrayList<>(recipients);
+        Connection con = this.getConnection();
+        if (con == null) {
+            return null;
+        }
+        try {
+            for (int from = 0; from < names.size(); from += IN_CHUNK_SIZE) {
+                List<String> chunk = names.subList(from, Math.min(from + IN_CHUNK_SIZE, names.size()));
+                String query = "SELECT recipient, COUNT(*) AS unread FROM messages " +
+                        "WHERE recipient IN (" + UserDaoImpl.placeholders(chunk.size()) + ") " +
+                        "AND deletedForRecipient = FALSE AND readStatus = FALSE GROUP BY recipient";
+                try (PreparedStatement ps = con.prepareStatement(query)) {
+                    for (int i = 0; i < chunk.size(); i++) {
+                        ps.setString(i + 1, chunk.get(i));
+                    }
+                    try (ResultSet rs = ps.executeQuery()) {
+                        while (rs.next()) {
+                            counts.merge(rs.getString("recipient"), rs.getInt("unread"), Integer::sum);
+                        }
+                    }
+                }
+            }
+        } catch (SQLException e) {
+            System.err.println(LocalDateTime.now() + ": An SQLException occurred in countUnreadMessages().");
             System.out.println("Error: " + e.getMessage());
+            // A partial result would reset the users it missed to 0
+            counts = null;
         }
         this.freeConnection(con);
-        return rowsAffected == 1;
+        return counts;
     }
 
-//    @Override
-//    public ArrayList<Message> searchAllMessages(String username){
-//        ArrayList<Message> allMessages = new ArrayList<>();
-//        Connection connection = this.getConnection();
-//
-//        String query = "SELECT * FROM messages WHERE user = ?";
-//        try(PreparedStatement preparedStatement = connection.prepareStatement(query)){
-//            preparedStatement.setString(1, username);
-//        }
-//
-//    }
+    // Run an update that takes only the mailbox owner's username. Returns -1 if the update failed.
+    private int updateMailbox(String caller, String query, String owner) {
+        Connection con = this.getConnection();
+        if (con == null) {
+            return -1;
+        }
+        int rowsAffected;
+        try (PreparedStatement ps = con.prepareStatement(query)) {
+            ps.setString(1, owner);
+            rowsAffected = ps.executeUpdate();
+        } catch (SQLException e) {
+            System.err.println(LocalDateTime.now() + ": An SQLException occurred in " + caller + "().");
+            System.out.println("Error: " + e.getMessage());
+            rowsAffected = -1;
+        }
+        this.freeConnection(con);
+        return rowsAffected;
+    }
 
     @Override
     public List<Message> getAllMessages(){
@@ -352,28 +1016,279 @@ public class MessageDaoImpl extends MySQLDao implements MessageDao {
       return messages;
     }
 
-//    @Override
-//    public Message viewMessageDetails(String message){
-//     String specificMessage = "";
-//
-//     Connection connection = super.getConnection();
-//     try(PreparedStatement preparedStatement = connection.prepareStatement("SELECT * FROM messages WHERE body LIKE !!")){
-//         preparedStatement.setString(1, message);
-//         try(ResultSet resultSet = preparedStatement.executeQuery()){
-//             if(resultSet.next()){
-//                 specificMessage = mapRow(resultSet);
-//             }
-//         } catch (SQLException e){
-//             System.out.println(LocalDateTime.now() + "SQLException occurred while executing the query");
-//             System.out.println("Error: " + e.getMessage());
-//             e.printStackTrace();
-//         }
-//         return specificMessage;
-//     }
+    /**
+     * Search the subjects and bodies of the <code>Messages</code> a user has
+     * sent or received, leaving out those the user has deleted. On MySQL this
+     * uses the FULLTEXT index on (subject, body); anywhere else, or if that
+     * index is missing, the user's mailbox is indexed in memory (and kept for
+     * later searches until it changes).
+     *
+     * @param username The username of the <code>User</code> searching their
+     *                 messages
+     * @param query    The words to search for
+     * @param page     The page of results wanted, numbered from 0
+     * @param pageSize The number of <code>Messages</code> on a page
+     *
+     * @return An <code>ArrayList</code> of the matching <code>Messages</code>
+     *         on the requested page, best match first. This will be empty if
+     *         nothing (more) matched or the search failed.
+     */
+    @Override
+    public ArrayList<Message> searchMessages(String username, String query, int page, int pageSize) {
+        if (username == null || page < 0 || pageSize <= 0 || TextIndex.tokenize(query).isEmpty()) {
+            return new ArrayList<>();
+        }
+        if (fullTextSearch) {
+            ArrayList<Message> found = searchWithFullText(username, query, page, pageSize);
+            if (found != null) {
+                return found;
+            }
+        }
+        return searchWithMailboxIndex(username, query, page, pageSize);
+    }
+
+    // Search through MySQL's FULLTEXT index. Returns null if it can't be used: the database isn't
+    // MySQL, or has no FULLTEXT index (after which every search goes to the in-memory index).
+    private ArrayList<Message> searchWithFullText(String username, String words, int page, int pageSize) {
+        ArrayList<Message> messages = new ArrayList<>();
+        Connection con = this.getConnection();
+        if (con == null) {
+            return messages;
+        }
+
+        String query = "SELECT * FROM messages WHERE MATCH(subject, body) AGAINST (? IN NATURAL LANGUAGE MODE) " +
+                "AND ((sender = ? AND deletedForSender = FALSE) OR (recipient = ? AND deletedForRecipient = FALSE)) " +
+                "ORDER BY MATCH(subject, body) AGAINST (? IN NATURAL LANGUAGE MODE) DESC, messageID DESC " +
+                "LIMIT ? OFFSET ?";
+        try {
+            if (!isMySQL(con)) {
+                messages = null;
+            } else {
+                try (PreparedStatement ps = con.prepareStatement(query)) {
+                    ps.setString(1, words);
+                    ps.setString(2, username);
+                    ps.setString(3, username);
+                    ps.setString(4, words);
+                    ps.setInt(5, pageSize);
+                    ps.setLong(6, (long) page * pageSize);
+                    try (ResultSet rs = ps.executeQuery()) {
+                        while (rs.next()) {
+                            messages.add(mapRow(rs));
+                        }
+                    }
+                }
+            }
+        } catch (SQLException e) {
+            if (e.getErrorCode() == ER_FT_MATCHING_KEY_NOT_FOUND) {
+                System.err.println(LocalDateTime.now() + ": No FULLTEXT index on messages, searching in memory.");
+                fullTextSearch = false;
+                messages = null;
+            } else {
+                System.err.println(LocalDateTime.now() + ": An SQLException occurred in searchMessages().");
+                System.out.println("Error: " + e.getMessage());
+                messages.clear();
+            }
+        }
+        this.freeConnection(con);
+        return messages;
+    }
+
+    private ArrayList<Message> searchWithMailboxIndex(String username, String words, int page, int pageSize) {
+        ArrayList<Message> messages = new ArrayList<>();
+        TextIndex index = getMailboxIndex(username);
+        if (index == null) {
+            return messages;
+        }
+        List<Integer> pageIds = visiblePage(username, index.search(words), (long) page * pageSize, pageSize);
+        if (pageIds == null || pageIds.isEmpty()) {
+            return messages;
+        }
 
+        // The deleted flags are checked again, in case a message was deleted in the meantime
+        Map<Integer, Message> found = new HashMap<>();
+        Connection con = this.getConnection();
+        if (con == null) {
+            return messages;
+        }
+        String query = "SELECT * FROM messages WHERE messageID IN (" + UserDaoImpl.placeholders(pageIds.size()) + ") " +
+                "AND ((sender = ? AND deletedForSender = FALSE) OR (recipient = ? AND deletedForRecipient = FALSE))";
+        try (PreparedStatement ps = con.prepareStatement(query)) {
+            int i = 1;
+            for (int id : pageIds) {
+                ps.setInt(i++, id);
+            }
+            ps.setString(i++, username);
+            ps.setString(i, username);
+            try (ResultSet rs = ps.executeQuery()) {
+                while (rs.next()) {
+                    Message m = mapRow(rs);
+                    found.put(m.getMessageID(), m);
+                }
+            }
+        } catch (SQLException e) {
+            System.err.println(LocalDateTime.now() + ": An SQLException occurred in searchMessages().");
+            System.out.println("Error: " + e.getMessage());
+        }
+        this.freeConnection(con);
 
+        for (int id : pageIds) {
+            Message m = found.get(id);
+            if (m != null) {
+                messages.add(m);
+            }
+        }
+        return messages;
+    }
 
+    // Cut a page out of ranked message ids, counting only messages the user can still see: a
+    // message deleted outside this DAO stays in a cached index until it expires. The ids are
+    // checked in rank order, a chunk at a time, until the page is full. Null if the check failed.
+    private List<Integer> visiblePage(String username, List<Integer> ranked, long offset, int limit) {
+        List<Integer> pageIds = new ArrayList<>(limit);
+        if (offset >= ranked.size()) {
+            return pageIds;
+        }
+        Connection con = this.getConnection();
+        if (con == null) {
+            return null;
+        }
+        long skipped = 0;
+        try {
+            int next = 0;
+            while (pageIds.size() < limit && next < ranked.size()) {
+                // Enough for the rest of the page if nothing in it has been deleted
+                long wanted = offset - skipped + limit - pageIds.size();
+                List<Integer> chunk = ranked.subList(next, (int) Math.min(next + Math.min(wanted, IN_CHUNK_SIZE),
+                        ranked.size()));
+                next += chunk.size();
 
+                Set<Integer> visible = new HashSet<>();
+                String query = "SELECT messageID FROM messages " +
+                        "WHERE messageID IN (" + UserDaoImpl.placeholders(chunk.size()) + ") " +
+                        "AND ((sender = ? AND deletedForSender = FALSE) OR " +
+                        "(recipient = ? AND deletedForRecipient = FALSE))";
+                try (PreparedStatement ps = con.prepareStatement(query)) {
+                    int i = 1;
+                    for (int id : chunk) {
+                        ps.setInt(i++, id);
+                    }
+                    ps.setString(i++, username);
+                    ps.setString(i, username);
+                    try (ResultSet rs = ps.executeQuery()) {
+                        while (rs.next()) {
+                            visible.add(rs.getInt(1));
+                        }
+                    }
+                }
+                for (int id : chunk) {
+                    if (!visible.contains(id)) {
+                        continue;
+                    }
+                    if (skipped < offset) {
+                        skipped++;
+                    } else if (pageIds.size() < limit) {
+                        pageIds.add(id);
+                    }
+                }
+            }
+        } catch (SQLException e) {
+            System.err.println(LocalDateTime.now() + ": An SQLException occurred in searchMessages().");
+            System.out.println("Error: " + e.getMessage());
+            pageIds = null;
+        }
+        this.freeConnection(con);
+        return pageIds;
+    }
+
+    // Get the in-memory index of a user's mailbox, building it if it isn't cached. Null if the
+    // mailbox couldn't be read; a failed build isn't cached.
+    private TextIndex getMailboxIndex(String username) {
+        String key = username.toLowerCase(Locale.ROOT);
+        LruCache.Entry<TextIndex> cached = mailboxIndexes.getEntry(key);
+        if (cached != null) {
+            return cached.getValue();
+        }
+        // Taken before reading, so an index that misses a change made meanwhile isn't kept
+        long generation = mailboxIndexes.getGeneration();
+        TextIndex index = buildMailboxIndex(username);
+        if (index != null) {
+            mailboxIndexes.put(key, index, generation);
+        }
+        return index;
+    }
+
+    private TextIndex buildMailboxIndex(String username) {
+        Connection con = this.getConnection();
+        if (con == null) {
+            return null;
+        }
+        TextIndex index = new TextIndex();
+        String query = "SELECT messageID, subject, body FROM messages WHERE sender = ? AND deletedForSender = FALSE " +
+                "UNION ALL " +
+                "SELECT messageID, subject, body FROM messages WHERE recipient = ? AND deletedForRecipient = FALSE";
+        try (PreparedStatement ps = con.prepareStatement(query, ResultSet.TYPE_FORWARD_ONLY,
+                ResultSet.CONCUR_READ_ONLY)) {
+            ps.setFetchSize(streamingFetchSize(con));
+            ps.setString(1, username);
+            ps.setString(2, username);
+            try (ResultSet rs = ps.executeQuery()) {
+                while (rs.next()) {
+                    index.add(rs.getInt("messageID"), rs.getString("subject"), rs.getString("body"));
+                }
+            }
+        } catch (SQLException e) {
+            System.err.println(LocalDateTime.now() + ": An SQLException occurred in searchMessages().");
+            System.out.println("Error: " + e.getMessage());
+            index = null;
+        }
+        this.freeConnection(con);
+        return index;
+    }
+
+    // Drop the cached search indexes of mailboxes that have changed, once the change is committed
+    // (an index built from the database before then would still be missing it)
+    private void forgetMailboxIndexes(String... usernames) {
+        afterCommit(() -> {
+            for (String username : usernames) {
+                if (username != null) {
+                    mailboxIndexes.invalidate(username.toLowerCase(Locale.ROOT));
+                }
+            }
+        });
+    }
+
+    /**
+     * Stream all <code>Messages</code> in the database, for exports and
+     * reports. Rows are read from the database as the stream is consumed, so
+     * memory use doesn't grow with the size of the table.
+     *
+     * @return A <code>Stream</code> of every <code>Message</code>. It holds a
+     *         database connection until it is closed.
+     */
+    @Override
+    public Stream<Message> streamAllMessages() {
+        return streamQuery("streamAllMessages", "SELECT * FROM messages", ResultSetStream.Parameters.NONE,
+                MessageDaoImpl::mapRow);
+    }
+
+    /**
+     * Stream all undeleted <code>Messages</code> sent by a specific
+     * <code>User</code>. Rows are read from the database as the stream is
+     * consumed.
+     *
+     * @param senderName The username of the <code>User</code> whose sent
+     *                   <code>Messages</code> are being retrieved
+     *
+     * @return A <code>Stream</code> of the <code>Messages</code> sent by the
+     *         supplied username. It holds a database connection until it is
+     *         closed.
+     */
+    @Override
+    public Stream<Message> streamSentMessagesForUser(String senderName) {
+        String query = "SELECT * FROM messages WHERE sender = ? AND deletedForSender = FALSE";
+        return streamQuery("streamSentMessagesForUser", query, ps -> ps.setString(1, senderName),
+                MessageDaoImpl::mapRow);
+    }
 
     public static void main(String[] args) {
         MessageDaoImpl messagesDao = new MessageDaoImpl("database.properties");
@@ -433,11 +1348,16 @@ public class MessageDaoImpl extends MySQLDao implements MessageDao {
         }
         System.out.println();
 
-        System.out.println("Messages received by Rick (in order of date received, from newest to oldest): ");
-        Collections.sort(receivedMessages);
-        for (Message m : receivedMessages) {
-            System.out.println(m);
-        }
+        System.out.println("Messages received by Rick (in order of date received, from newest to oldest, 2 per page): ");
+        MessageCursor cursor = null;
+        ArrayList<Message> page;
+        do {
+            page = messagesDao.getReceivedMessagesPage("Rick", cursor, 2);
+            for (Message m : page) {
+                System.out.println(m);
+                cursor = MessageCursor.after(m);
+            }
+        } while (page.size() == 2);
         System.out.println();
 
         //****************Testing getting a specific message********************
@@ -2,66 +2,79 @@ package webpatterns.persistence;
 
 import lombok.Getter;
 
-import java.io.FileInputStream;
-import java.io.IOException;
 import java.sql.Connection;
-import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.sql.Savepoint;
+import java.sql.Statement;
 import java.time.LocalDateTime;
-import java.util.Properties;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.function.Supplier;
+import java.util.stream.Stream;
 
 public class MySQLDao {
-    private Properties properties;
+    // Rows sent to the database per executeBatch() by insertInBatches
+    static final int BATCH_SIZE = 1000;
+    // Reported by insertInBatches for a row whose INSERT ... SELECT found nothing to insert
+    static final String NOTHING_INSERTED = "No row was inserted";
+
+    // The unit of work running on this thread for DAOs built around a single connection (see
+    // inUnitOfWork). Every such DAO sharing that connection joins it.
+    private static final ThreadLocal<LocalUnitOfWork> LOCAL_UNIT_OF_WORK = new ThreadLocal<>();
+
     @Getter
     private String propertiesFile;
+    private ConnectionPool pool;
     private Connection conn;
 
     public MySQLDao(Connection conn){
         this.conn = conn;
     }
 
+    public MySQLDao(ConnectionPool pool){
+        this.pool = pool;
+    }
+
     public MySQLDao(String propertiesFilename){
-        properties = new Properties();
-        try {
-            // Get the path to the specified properties file
-            String rootPath = Thread.currentThread().getContextClassLoader().getResource(propertiesFilename).getPath();
-            // Load in all key-value pairs from properties file
-            properties.load(new FileInputStream(rootPath));
-            propertiesFile = propertiesFilename;
-        }catch(IOException e){
-            System.out.println("An exception occurred when attempting to load properties from \"" + propertiesFilename + "\": " + e.getMessage());
-        }
+        // Every DAO built from the same properties file shares one pool
+        this.pool = ConnectionPool.forPropertiesFile(propertiesFilename);
+        this.propertiesFile = propertiesFilename;
     }
 
     public Connection getConnection(){
         if(conn != null){
             return conn;
         }
+        // Join the unit of work running on this thread, if there is one
+        Connection bound = pool.getBoundConnection();
+        if(bound != null){
+            return bound;
+        }
 
-        String driver = properties.getProperty("driver");
-        String url = properties.getProperty("url");
-        String database = properties.getProperty("database");
-        String username = properties.getProperty("username");
-        String password = properties.getProperty("password", "");
         try{
-            Class.forName(driver);
-
-            try{
-                return DriverManager.getConnection(url+database, username, password);
-            }catch(SQLException e){
-                System.out.println(LocalDateTime.now() + ": An SQLException  occurred while trying to connect to the " + url +
-                        "database.");
-                System.out.println("Error: " + e.getMessage());
-            }
-        }catch(ClassNotFoundException e){
-            System.out.println(LocalDateTime.now() + ": A ClassNotFoundException occurred while trying to load the MySQL driver.");
+            return pool.getConnection();
+        }catch(SQLException e){
+            System.out.println(LocalDateTime.now() + ": An SQLException  occurred while trying to get a connection " +
+                    "from the pool for " + propertiesFile + ".");
             System.out.println("Error: " + e.getMessage());
         }
         return null;
     }
 
     public void freeConnection(Connection conn){
+        // A connection supplied from outside belongs to the caller, leave it open
+        if(conn == null || conn == this.conn){
+            return;
+        }
+        // A connection bound to a unit of work is released when the work completes
+        if(conn == pool.getBoundConnection()){
+            return;
+        }
         try {
+            // Closing a pooled connection returns it to the pool
             conn.close();
         } catch (SQLException e) {
             System.out.println(LocalDateTime.now() + ": An SQLException occurred while trying to close the " +
@@ -70,4 +83,422 @@ public class MySQLDao {
             System.out.println("Error: " + e.getMessage());
         }
     }
+
+    /**
+     * Run a piece of work so that every DAO call inside it shares one
+     * connection and one transaction. See
+     * <code>ConnectionPool.inUnitOfWork</code>.
+     *
+     * A DAO built around a single connection already shares it, but still
+     * gets a transaction: the work is committed or rolled back on that
+     * connection. If its owner already has a transaction open (auto-commit
+     * is off), the work runs behind a savepoint instead, so that rolling back
+     * only undoes this work and committing is left to the owner.
+     *
+     * @param work The work to run.
+     *
+     * @return Whatever the work returns.
+     */
+    public <T> T inUnitOfWork(Supplier<T> work){
+        if(pool == null){
+            return inLocalUnitOfWork(work);
+        }
+        return pool.inUnitOfWork(work);
+    }
+
+    /**
+     * Mark the unit of work running on this thread so that it is rolled back
+     * instead of committed. Does nothing outside a unit of work.
+     */
+    protected void setRollbackOnly(){
+        if(pool != null){
+            pool.setRollbackOnly();
+            return;
+        }
+        LocalUnitOfWork unitOfWork = LOCAL_UNIT_OF_WORK.get();
+        if(unitOfWork != null && unitOfWork.connection == conn){
+            unitOfWork.rollbackOnly = true;
+        }
+    }
+
+    /**
+     * Run an action once the unit of work running on this thread has
+     * committed (see <code>ConnectionPool.afterCommit</code>). It is dropped
+     * if the work is rolled back, and runs straight away outside a unit of
+     * work. For a unit of work run behind a savepoint, "committed" means the
+     * savepoint was kept; the owner of the connection still decides whether
+     * its transaction commits.
+     *
+     * @param action The action to run.
+     */
+    protected void afterCommit(Runnable action){
+        if(pool != null){
+            pool.afterCommit(action);
+            return;
+        }
+        LocalUnitOfWork unitOfWork = LOCAL_UNIT_OF_WORK.get();
+        if(unitOfWork != null && unitOfWork.connection == conn){
+            unitOfWork.afterCommit.add(action);
+        }else{
+            action.run();
+        }
+    }
+
+    private <T> T inLocalUnitOfWork(Supplier<T> work){
+        LocalUnitOfWork outer = LOCAL_UNIT_OF_WORK.get();
+        if(outer != null && outer.connection == conn){
+            return work.get();
+        }
+
+        boolean ownTransaction;
+        Savepoint savepoint = null;
+        try{
+            ownTransaction = conn.getAutoCommit();
+            if(ownTransaction){
+                conn.setAutoCommit(false);
+            }else{
+                savepoint = conn.setSavepoint();
+            }
+        }catch(SQLException e){
+            System.err.println(LocalDateTime.now() + ": Unable to start a unit of work, running without one.");
+            System.out.println("Error: " + e.getMessage());
+            return work.get();
+        }
+
+        LocalUnitOfWork unitOfWork = new LocalUnitOfWork(conn);
+        LOCAL_UNIT_OF_WORK.set(unitOfWork);
+        T result;
+        try{
+            result = work.get();
+        }catch(RuntimeException | Error e){
+            LOCAL_UNIT_OF_WORK.set(outer);
+            endLocalUnitOfWork(ownTransaction, savepoint, false);
+            throw e;
+        }
+        LOCAL_UNIT_OF_WORK.set(outer);
+        boolean commit = !unitOfWork.rollbackOnly;
+        if(!endLocalUnitOfWork(ownTransaction, savepoint, commit)){
+            throw new IllegalStateException("Unable to complete a unit of work");
+        }
+        if(commit){
+            for(Runnable action : unitOfWork.afterCommit){
+                try{
+                    action.run();
+                }catch(RuntimeException e){
+                    System.err.println(LocalDateTime.now() + ": An after-commit action failed.");
+                    System.out.println("Error: " + e.getMessage());
+                }
+            }
+        }
+        return result;
+    }
+
+    // Commit or roll back a single-connection unit of work. Returns false if committing failed.
+    private boolean endLocalUnitOfWork(boolean ownTransaction, Savepoint savepoint, boolean commit){
+        boolean ended = true;
+        try{
+            if(ownTransaction){
+                if(commit){
+                    conn.commit();
+                }else{
+                    conn.rollback();
+                }
+            }else if(commit){
+                conn.releaseSavepoint(savepoint);
+            }else{
+                conn.rollback(savepoint);
+            }
+        }catch(SQLException e){
+            System.err.println(LocalDateTime.now() + ": An SQLException occurred while ending a unit of work.");
+            System.out.println("Error: " + e.getMessage());
+            ended = !commit;
+            if(commit){
+                try{
+                    if(ownTransaction){
+                        conn.rollback();
+                    }else{
+                        conn.rollback(savepoint);
+                    }
+                }catch(SQLException ignored){
+                    // Already reported the original failure
+                }
+            }
+        }
+        if(ownTransaction){
+            try{
+                conn.setAutoCommit(true);
+            }catch(SQLException e){
+                System.out.println("Error: " + e.getMessage());
+            }
+        }
+        return ended;
+    }
+
+
+    /**
+     * Run a lookup through a <code>SingleFlight</code>, so that concurrent
+     * identical lookups share one query. Inside a unit of work the lookup
+     * always runs on its own, since it has to see that transaction's data.
+     *
+     * @param lookups The <code>SingleFlight</code> for this kind of lookup.
+     * @param key     Identifies the lookup.
+     * @param loader  Runs the query.
+     *
+     * @return The result of the lookup.
+     */
+    protected <K, V> V coalesce(SingleFlight<K, V> lookups, K key, Supplier<V> loader){
+        if(conn == null && pool.getBoundConnection() != null){
+            return loader.get();
+        }
+        return lookups.execute(key, loader);
+    }
+
+    /**
+     * Run a query and stream its rows instead of collecting them into a list.
+     * The connection is held until the stream is closed (see
+     * <code>ResultSetStream</code>), and rows are fetched from the server as
+     * the stream is read rather than all at once.
+     *
+     * With MySQL a streaming result must be read to the end or closed before
+     * the same connection can run another statement, so don't call other DAO
+     * methods while consuming a stream inside a unit of work.
+     *
+     * @param caller The name of the calling DAO method, used in error output.
+     * @param query  The query to run.
+     * @param params Binds the query's parameters.
+     * @param mapper Builds an object from each row.
+     *
+     * @return The rows as a <code>Stream</code>, which must be closed. This is
+     *         empty if the query could not be run.
+     */
+    protected <T> Stream<T> streamQuery(String caller, String query, ResultSetStream.Parameters params,
+                                        ResultSetStream.RowMapper<T> mapper){
+        Connection con = getConnection();
+        if(con == null){
+            return Stream.empty();
+        }
+        PreparedStatement ps = null;
+        try{
+            ps = con.prepareStatement(query, ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
+            ps.setFetchSize(streamingFetchSize(con));
+            params.set(ps);
+            ResultSet rs = ps.executeQuery();
+            return ResultSetStream.of(ps, rs, mapper, () -> freeConnection(con));
+        }catch(SQLException e){
+            System.err.println(LocalDateTime.now() + ": An SQLException occurred in " + caller + "().");
+            System.out.println("Error: " + e.getMessage());
+            try{
+                if(ps != null){
+                    ps.close();
+                }
+            }catch(SQLException ignored){
+                // Already reported the original failure
+            }
+            freeConnection(con);
+            return Stream.empty();
+        }
+    }
+
+    // Connector/J only streams row by row when asked for a fetch size of Integer.MIN_VALUE;
+    // anything else reads the whole result into memory. Other drivers take an ordinary batch size.
+    protected static int streamingFetchSize(Connection con) throws SQLException{
+        if(isMySQL(con)){
+            return Integer.MIN_VALUE;
+        }
+        return ResultSetStream.FETCH_SIZE;
+    }
+
+    // True if the connection is to MySQL through Connector/J (rather than e.g. the H2 test database)
+    protected static boolean isMySQL(Connection con) throws SQLException{
+        String driver = con.getMetaData().getDriverName();
+        return driver != null && driver.startsWith("MySQL");
+    }
+
+    /**
+     * Insert rows using JDBC batches of up to <code>BATCH_SIZE</code> rows,
+     * so that a large import costs one round trip per batch instead of one
+     * per row. The query should be a plain single-row
+     * <code>INSERT ... VALUES (...)</code>, which Connector/J rewrites into a
+     * multi-row insert when <code>rewriteBatchedStatements</code> is on. It
+     * can also be an <code>INSERT ... SELECT</code> that inserts at most one
+     * row, so the database decides whether each row goes in; one that
+     * inserts nothing is reported as failed with <code>NOTHING_INSERTED</code>.
+     *
+     * Each batch is applied all or nothing, in a transaction of its own (or
+     * behind a savepoint when the connection already has a transaction open,
+     * e.g. in a unit of work). If a batch fails it is rolled back and its rows
+     * are inserted again one at a time, so that only the rows at fault are
+     * reported as failed.
+     *
+     * @param caller     The name of the calling DAO method, used in error
+     *                   output.
+     * @param query      The single-row insert.
+     * @param rows       The rows to insert. Null entries are skipped (the
+     *                   caller has already rejected them).
+     * @param returnKeys Whether to read back the key generated for each row.
+     * @param binder     Binds one row's values to the statement.
+     * @param listener   Told the outcome of every non-null row.
+     */
+    protected <T> void insertInBatches(String caller, String query, List<T> rows, boolean returnKeys,
+                                       RowBinder<T> binder, BatchListener listener){
+        List<Integer> pending = new ArrayList<>();
+        for(int i = 0; i < rows.size(); i++){
+            if(rows.get(i) != null){
+                pending.add(i);
+            }
+        }
+        if(pending.isEmpty()){
+            return;
+        }
+
+        boolean[] reported = new boolean[rows.size()];
+        Connection con = getConnection();
+        if(con == null){
+            pending.forEach(row -> listener.failed(row, "No database connection available"));
+            return;
+        }
+        boolean ownTransaction = false;
+        int keyMode = returnKeys ? Statement.RETURN_GENERATED_KEYS : Statement.NO_GENERATED_KEYS;
+        try(PreparedStatement ps = con.prepareStatement(query, keyMode)){
+            ownTransaction = con.getAutoCommit();
+            if(ownTransaction){
+                con.setAutoCommit(false);
+            }
+            for(int start = 0; start < pending.size(); start += BATCH_SIZE){
+                List<Integer> batch = pending.subList(start, Math.min(start + BATCH_SIZE, pending.size()));
+                Savepoint savepoint = ownTransaction ? null : con.setSavepoint();
+                try{
+                    for(int row : batch){
+                        binder.bind(ps, rows.get(row));
+                        ps.addBatch();
+                    }
+                    int[] counts = ps.executeBatch();
+                    // Keys only come back for the rows that were inserted, in order
+                    int insertedRows = 0;
+                    for(int count : counts){
+                        if(count != 0){
+                            insertedRows++;
+                        }
+                    }
+                    int[] keys = returnKeys ? readGeneratedKeys(ps, insertedRows) : null;
+                    endStep(con, savepoint);
+                    int key = 0;
+                    for(int i = 0; i < batch.size(); i++){
+                        reported[batch.get(i)] = true;
+                        if(i < counts.length && counts[i] == 0){
+                            listener.failed(batch.get(i), NOTHING_INSERTED);
+                        }else{
+                            listener.inserted(batch.get(i), keys == null ? -1 : keys[key++]);
+                        }
+                    }
+                }catch(SQLException e){
+                    ps.clearBatch();
+                    rollbackStep(con, savepoint);
+                    // Find the rows at fault by inserting this batch again a row at a time
+                    for(int row : batch){
+                        insertOne(con, ps, ownTransaction, returnKeys, row, rows.get(row), binder, listener);
+                        reported[row] = true;
+                    }
+                }
+            }
+        }catch(SQLException e){
+            System.err.println(LocalDateTime.now() + ": An SQLException occurred in " + caller + "().");
+            System.out.println("Error: " + e.getMessage());
+            for(int row : pending){
+                if(!reported[row]){
+                    listener.failed(row, e.getMessage());
+                }
+            }
+        }finally{
+            if(ownTransaction){
+                try{
+                    con.setAutoCommit(true);
+                }catch(SQLException e){
+                    System.out.println("Error: " + e.getMessage());
+                }
+            }
+            freeConnection(con);
+        }
+    }
+
+    private <T> void insertOne(Connection con, PreparedStatement ps, boolean ownTransaction, boolean returnKeys,
+                               int row, T value, RowBinder<T> binder, BatchListener listener) throws SQLException{
+        Savepoint savepoint = ownTransaction ? null : con.setSavepoint();
+        try{
+            binder.bind(ps, value);
+            if(ps.executeUpdate() == 0){
+                endStep(con, savepoint);
+                listener.failed(row, NOTHING_INSERTED);
+                return;
+            }
+            int key = returnKeys ? readGeneratedKeys(ps, 1)[0] : -1;
+            endStep(con, savepoint);
+            listener.inserted(row, key);
+        }catch(SQLException e){
+            rollbackStep(con, savepoint);
+            listener.failed(row, e.getMessage());
+        }
+    }
+
+    private static int[] readGeneratedKeys(PreparedStatement ps, int count) throws SQLException{
+        int[] keys = new int[count];
+        Arrays.fill(keys, -1);
+        try(ResultSet generatedKeys = ps.getGeneratedKeys()){
+            for(int i = 0; i < count && generatedKeys.next(); i++){
+                keys[i] = generatedKeys.getInt(1);
+            }
+        }
+        return keys;
+    }
+
+    // Commit a step run in our own transaction, or keep a step run behind a savepoint
+    private static void endStep(Connection con, Savepoint savepoint) throws SQLException{
+        if(savepoint == null){
+            con.commit();
+        }else{
+            con.releaseSavepoint(savepoint);
+        }
+    }
+
+    private static void rollbackStep(Connection con, Savepoint savepoint) throws SQLException{
+        if(savepoint == null){
+            con.rollback();
+        }else{
+            con.rollback(savepoint);
+        }
+    }
+
+    // Binds one row of a batch insert
+    @FunctionalInterface
+    protected interface RowBinder<T>{
+        void bind(PreparedStatement ps, T row) throws SQLException;
+    }
+
+    // Told the outcome of each row of a batch insert (by its position in the list of rows)
+    protected interface BatchListener{
+        // generatedKey is -1 if keys weren't requested
+        void inserted(int row, int generatedKey);
+
+        void failed(int row, String reason);
+    }
+
+    /**
+     * Get the current statistics for the connection pool behind this DAO.
+     *
+     * @return A snapshot of the pool statistics, or null if this DAO was
+     *         built around a single supplied connection.
+     */
+    public PoolStats getPoolStats(){
+        return pool == null ? null : pool.getStats();
+    }
+
+    private static class LocalUnitOfWork {
+        private final Connection connection;
+        private final List<Runnable> afterCommit = new ArrayList<>();
+        private boolean rollbackOnly;
+
+        private LocalUnitOfWork(Connection connection) {
+            this.connection = connection;
+        }
+    }
 }
@@ -0,0 +1,83 @@
+package webpatterns.persistence;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Creates the connection pool and the DAOs once at startup. The DAOs hold no
+ * per-request state, so a single instance of each is shared by every request.
+ */
+@Configuration
+public class PersistenceConfig {
+    private static final String DATABASE_PROPERTIES = "database.properties";
+
+    @Bean(destroyMethod = "close")
+    public ConnectionPool connectionPool() {
+        return ConnectionPool.forPropertiesFile(DATABASE_PROPERTIES);
+    }
+
+    @Bean
+    public FriendshipGraph friendshipGraph(@Value("${friendships.cache.maxUsers:10000}") int maxUsers,
+                                           @Value("${friendships.cache.maxFriends:5000}") int maxFriends) {
+        return new FriendshipGraph(maxUsers, maxFriends);
+    }
+
+    // The user cache can be switched off per environment with users.cache.enabled=false
+    @Bean
+    public UserDao userDao(ConnectionPool pool, FriendshipGraph friendshipGraph,
+                           @Value("${users.cache.enabled:true}") boolean cacheEnabled,
+                           @Value("${users.cache.maxSize:10000}") int cacheSize,
+                           @Value("${users.cache.ttlSeconds:300}") long cacheTtlSeconds) {
+        UserDao userDao = new UserDaoImpl(pool, friendshipGraph);
+        if (!cacheEnabled) {
+            return userDao;
+        }
+        return new CachingUserDao(userDao, cacheSize, cacheTtlSeconds, TimeUnit.SECONDS);
+    }
+
+    // The newest blog.feed.size entries are kept in memory and refreshed in the background.
+    // The search index is built in the background; if the database isn't up yet, the first search builds it.
+    @Bean
+    public BlogEntryDao blogEntryDao(ConnectionPool pool,
+                                     @Value("${blog.feed.size:50}") int feedSize,
+                                     @Value("${blog.feed.maxAgeSeconds:30}") long feedMaxAgeSeconds,
+                                     @Value("${blog.titles.cache.maxSize:10000}") int titleCacheSize,
+                                     @Value("${blog.titles.cache.ttlSeconds:300}") long titleTtlSeconds) {
+        BlogEntryDaoImpl blogEntryDao = new BlogEntryDaoImpl(pool);
+        CompletableFuture.runAsync(blogEntryDao::buildSearchIndex);
+        return new CachingBlogEntryDao(blogEntryDao, feedSize, feedMaxAgeSeconds, titleCacheSize, titleTtlSeconds,
+                TimeUnit.SECONDS);
+    }
+
+    @Bean
+    public FriendshipDao friendshipDao(ConnectionPool pool, FriendshipGraph friendshipGraph, UserDao userDao) {
+        return new FriendshipDaoImpl(pool, friendshipGraph, userDao);
+    }
+
+    // Unread counts are kept in memory and corrected from the database every reconcileSeconds
+    @Bean(destroyMethod = "close")
+    public UnreadCounter unreadCounter(@Value("${messages.unread.maxUsers:100000}") int maxUsers) {
+        return new UnreadCounter(maxUsers);
+    }
+
+    // With messages.readStatus.writeBehind=true (it is off by default), marking a message as read
+    // is queued and written in batches rather than updated on the request thread
+    @Bean
+    public MessageDao messageDao(ConnectionPool pool, UnreadCounter unreadCounter, FriendshipDao friendshipDao,
+                                 @Value("${messages.unread.reconcileSeconds:300}") long reconcileSeconds,
+                                 @Value("${messages.readStatus.writeBehind:false}") boolean writeBehind,
+                                 @Value("${messages.readStatus.maxPending:10000}") int maxPending,
+                                 @Value("${messages.readStatus.flushSize:500}") int flushSize,
+                                 @Value("${messages.readStatus.flushMillis:500}") long flushMillis) {
+        MessageDaoImpl messageDao = new MessageDaoImpl(pool, unreadCounter, friendshipDao);
+        unreadCounter.reconcileEvery(messageDao::countUnreadMessages, reconcileSeconds, TimeUnit.SECONDS);
+        if (!writeBehind) {
+            return messageDao;
+        }
+        return new WriteBehindMessageDao(messageDao, maxPending, flushSize, flushMillis, TimeUnit.MILLISECONDS);
+    }
+}
@@ -0,0 +1,31 @@
+package webpatterns.persistence;
+
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+import lombok.ToString;
+
+/**
+ * A point-in-time snapshot of the state of a <code>ConnectionPool</code>.
+ *
+ * Connection counts come from the pool itself, acquisition figures are
+ * accumulated by the pool since it was created.
+ */
+@Getter
+@ToString
+@AllArgsConstructor
+public class PoolStats {
+    // Connections currently handed out to DAO methods
+    private int active;
+    // Connections sitting in the pool ready to be used
+    private int idle;
+    // Active + idle
+    private int total;
+    // Threads currently blocked waiting for a connection
+    private int waiters;
+    // Number of successful connection acquisitions
+    private long acquisitions;
+    // Number of acquisitions that timed out or failed
+    private long failedAcquisitions;
+    private double averageAcquireMillis;
+    private double maxAcquireMillis;
+}
@@ -0,0 +1,89 @@
+package webpatterns.persistence;
+
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+/**
+ * Turns an open <code>ResultSet</code> into a <code>Stream</code> that maps
+ * one row at a time, so a large result can be processed in constant memory.
+ *
+ * The statement, result set and connection stay open until the stream is
+ * closed, so callers must close it (use try-with-resources). They are also
+ * released as soon as the last row has been read. A database error while
+ * reading rows is thrown as an <code>IllegalStateException</code>, since
+ * quietly ending the stream early would look like a complete result.
+ */
+public final class ResultSetStream {
+    // Rows fetched per round trip by drivers that honour a positive fetch size
+    static final int FETCH_SIZE = 500;
+
+    // Builds one object from the current row
+    @FunctionalInterface
+    public interface RowMapper<T> {
+        T map(ResultSet rs) throws SQLException;
+    }
+
+    // Binds the query's parameters
+    @FunctionalInterface
+    public interface Parameters {
+        void set(PreparedStatement ps) throws SQLException;
+
+        Parameters NONE = ps -> { };
+    }
+
+    private ResultSetStream() {
+    }
+
+    /**
+     * @param ps      The statement that produced the result set.
+     * @param rs      The result set to stream.
+     * @param mapper  Maps each row.
+     * @param release Run once, after the result set and statement are
+     *                closed, to give back the connection.
+     */
+    static <T> Stream<T> of(PreparedStatement ps, ResultSet rs, RowMapper<T> mapper, Runnable release) {
+        AtomicBoolean closed = new AtomicBoolean();
+        Runnable close = () -> {
+            if (closed.compareAndSet(false, true)) {
+                closeQuietly(rs, ps);
+                release.run();
+            }
+        };
+
+        Spliterator<T> rows = new Spliterators.AbstractSpliterator<>(Long.MAX_VALUE, Spliterator.ORDERED | Spliterator.NONNULL) {
+            @Override
+            public boolean tryAdvance(Consumer<? super T> action) {
+                if (closed.get()) {
+                    return false;
+                }
+                try {
+                    if (!rs.next()) {
+                        close.run();
+                        return false;
+                    }
+                    action.accept(mapper.map(rs));
+                    return true;
+                } catch (SQLException e) {
+                    close.run();
+                    throw new IllegalStateException("Reading a streamed result failed: " + e.getMessage(), e);
+                }
+            }
+        };
+        return StreamSupport.stream(rows, false).onClose(close);
+    }
+
+    private static void closeQuietly(ResultSet rs, PreparedStatement ps) {
+        try (ps; rs) {
+            // Closed in reverse order by try-with-resources
+        } catch (SQLException e) {
+            System.out.println("Error: " + e.getMessage());
+        }
+    }
+}
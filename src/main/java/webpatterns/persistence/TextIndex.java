@@ -0,0 +1,172 @@
+package webpatterns.persistence;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * An in-memory inverted index for searching short documents (a heading and
+ * some text, e.g. a blog entry's title and content) by their words.
+ *
+ * Text is split into lower-case words of letters and digits; very common
+ * English words are left out. Each word maps to the documents containing it
+ * and how often, so a search only looks at documents sharing a word with the
+ * query. Results are ranked by TF-IDF: words that are rare across all
+ * documents count for more than common ones, and words in the heading count
+ * <code>HEADING_WEIGHT</code> times as much as words in the text.
+ *
+ * Documents are identified by an int id (their primary key). Many threads
+ * can search at once; adding and removing documents take a write lock.
+ */
+public class TextIndex {
+    static final int HEADING_WEIGHT = 3;
+
+    private static final Set<String> STOP_WORDS = Set.of(
+            "a", "an", "and", "are", "as", "at", "be", "but", "by", "for", "if", "in", "into", "is", "it",
+            "no", "not", "of", "on", "or", "such", "that", "the", "their", "then", "there", "these", "they",
+            "this", "to", "was", "will", "with");
+
+    // word -> document id -> weighted number of occurrences
+    private final Map<String, Map<Integer, Integer>> postings = new HashMap<>();
+    // document id -> its distinct words, so a document can be removed without re-reading it
+    private final Map<Integer, String[]> documents = new HashMap<>();
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+    /**
+     * Add a document, or replace it if one with the same id is indexed.
+     */
+    public void add(int id, String heading, String text) {
+        Map<String, Integer> counts = new HashMap<>();
+        for (String word : tokenize(heading)) {
+            counts.merge(word, HEADING_WEIGHT, Integer::sum);
+        }
+        for (String word : tokenize(text)) {
+            counts.merge(word, 1, Integer::sum);
+        }
+
+        lock.writeLock().lock();
+        try {
+            removeLocked(id);
+            for (Map.Entry<String, Integer> e : counts.entrySet()) {
+                postings.computeIfAbsent(e.getKey(), k -> new HashMap<>()).put(id, e.getValue());
+            }
+            documents.put(id, counts.keySet().toArray(new String[0]));
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    public void remove(int id) {
+        lock.writeLock().lock();
+        try {
+            removeLocked(id);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    public void clear() {
+        lock.writeLock().lock();
+        try {
+            postings.clear();
+            documents.clear();
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    public int size() {
+        lock.readLock().lock();
+        try {
+            return documents.size();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Find the documents matching any word of a query, best match first.
+     *
+     * @param query The words to search for.
+     *
+     * @return The ids of every matching document, ranked by relevance (ties
+     *         broken by the higher, i.e. newer, id first). Empty if the query
+     *         has no searchable words.
+     */
+    public List<Integer> search(String query) {
+        Set<String> words = new LinkedHashSet<>(tokenize(query));
+        if (words.isEmpty()) {
+            return Collections.emptyList();
+        }
+
+        Map<Integer, Double> scores = new HashMap<>();
+        lock.readLock().lock();
+        try {
+            int documentCount = documents.size();
+            for (String word : words) {
+                Map<Integer, Integer> matches = postings.get(word);
+                if (matches == null) {
+                    continue;
+                }
+                double idf = Math.log(1.0 + (double) documentCount / matches.size());
+                for (Map.Entry<Integer, Integer> m : matches.entrySet()) {
+                    double tf = 1.0 + Math.log(m.getValue());
+                    scores.merge(m.getKey(), tf * idf, Double::sum);
+                }
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+
+        List<Map.Entry<Integer, Double>> ranked = new ArrayList<>(scores.entrySet());
+        ranked.sort((a, b) -> {
+            int byScore = Double.compare(b.getValue(), a.getValue());
+            return byScore != 0 ? byScore : Integer.compare(b.getKey(), a.getKey());
+        });
+        List<Integer> ids = new ArrayList<>(ranked.size());
+        for (Map.Entry<Integer, Double> e : ranked) {
+            ids.add(e.getKey());
+        }
+        return ids;
+    }
+
+    /**
+     * Split text into the words that are indexed: runs of letters and digits,
+     * lower-cased, leaving out stop words and single characters.
+     */
+    static List<String> tokenize(String text) {
+        if (text == null || text.isEmpty()) {
+            return Collections.emptyList();
+        }
+        List<String> words = new ArrayList<>();
+        for (String word : text.toLowerCase(Locale.ROOT).split("[^\\p{L}\\p{Nd}]+")) {
+            if (word.length() > 1 && !STOP_WORDS.contains(word)) {
+                words.add(word);
+            }
+        }
+        return words;
+    }
+
+    private void removeLocked(int id) {
+        String[] words = documents.remove(id);
+        if (words == null) {
+            return;
+        }
+        for (String word : words) {
+            Map<Integer, Integer> matches = postings.get(word);
+            if (matches != null) {
+                matches.remove(id);
+                if (matches.isEmpty()) {
+                    postings.remove(word);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,167 @@
+package webpatterns.persistence;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+import java.util.function.ToIntFunction;
+
+/**
+ * In-memory count of each user's unread (and not deleted) received messages,
+ * so the unread badge costs a map lookup rather than a query.
+ *
+ * A user's count is loaded from the database the first time it is asked
+ * for, and from then on kept up to date by the changes the DAO makes
+ * (<code>add</code>). Changes for users whose count isn't loaded yet are
+ * ignored, since the count will include them when it is loaded. Counts can
+ * still drift (e.g. a change racing the initial load, or a change made
+ * outside the DAO), so <code>reconcileEvery</code> periodically reloads every
+ * tracked count.
+ *
+ * At most <code>maxUsers</code> counts are kept; past that the counts are
+ * cleared and reloaded on demand.
+ */
+@Slf4j
+public class UnreadCounter implements AutoCloseable {
+    private final int maxUsers;
+    private final Map<String, LongAdder> counts = new ConcurrentHashMap<>();
+    private ScheduledExecutorService reconciler;
+
+    public UnreadCounter() {
+        this(100_000);
+    }
+
+    public UnreadCounter(int maxUsers) {
+        this.maxUsers = maxUsers;
+    }
+
+    /**
+     * Get a user's unread count, loading it if it isn't tracked yet.
+     *
+     * @param username The user whose count is wanted.
+     * @param loader   Counts the user's unread messages in the database,
+     *                 returning a negative number if it couldn't.
+     *
+     * @return The number of unread messages. If the count couldn't be loaded
+     *         this is 0, and nothing is tracked, so the next call tries again.
+     */
+    public int get(String username, ToIntFunction<String> loader) {
+        LongAdder count = counts.get(key(username));
+        if (count == null) {
+            int loaded = loader.applyAsInt(username);
+            if (loaded < 0) {
+                return 0;
+            }
+            count = track(username, loaded);
+        }
+        // A decrement that beat its matching increment can dip below zero for a moment
+        return (int) Math.max(0, count.sum());
+    }
+
+    /**
+     * Apply a change to a user's count, if it is being tracked.
+     */
+    public void add(String username, int delta) {
+        if (username == null || delta == 0) {
+            return;
+        }
+        LongAdder count = counts.get(key(username));
+        if (count != null) {
+            count.add(delta);
+        }
+    }
+
+    /**
+     * Start reloading every tracked count on a fixed schedule.
+     *
+     * @param loader Counts the unread messages of a batch of users, returning
+     *               a count for each (a user with none may be left out), or
+     *               null if it couldn't.
+     * @param period Time between reconciliations.
+     */
+    public synchronized void reconcileEvery(Function<Collection<String>, Map<String, Integer>> loader, long period,
+                                            TimeUnit unit) {
+        if (reconciler != null) {
+            throw new IllegalStateException("Reconciliation is already scheduled");
+        }
+        reconciler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "unread-count-reconcile");
+            t.setDaemon(true);
+            return t;
+        });
+        reconciler.scheduleWithFixedDelay(() -> {
+            try {
+                reconcile(loader);
+            } catch (RuntimeException e) {
+                log.error("Reconciling unread counts failed", e);
+            }
+        }, period, period, unit);
+    }
+
+    /**
+     * Reload every tracked count from the database, fixing any drift. Nothing
+     * is changed if the loader fails (returns null).
+     */
+    public void reconcile(Function<Collection<String>, Map<String, Integer>> loader) {
+        List<String> users = new ArrayList<>(counts.keySet());
+        if (users.isEmpty()) {
+            return;
+        }
+        Map<String, Integer> actual = loader.apply(users);
+        if (actual == null) {
+            log.warn("Unable to load unread counts, leaving {} counts as they are", users.size());
+            return;
+        }
+        int corrected = 0;
+        for (String user : users) {
+            LongAdder count = counts.get(user);
+            int expected = actual.getOrDefault(user, 0);
+            if (count != null && count.sum() != expected) {
+                // Replaced rather than adjusted, so a change racing the reload isn't applied twice
+                LongAdder fresh = new LongAdder();
+                fresh.add(expected);
+                if (counts.replace(user, count, fresh)) {
+                    corrected++;
+                }
+            }
+        }
+        if (corrected > 0) {
+            log.info("Corrected {} of {} unread counts", corrected, users.size());
+        }
+    }
+
+    public void clear() {
+        counts.clear();
+    }
+
+    @Override
+    public synchronized void close() {
+        if (reconciler != null) {
+            reconciler.shutdownNow();
+        }
+    }
+
+    private LongAdder track(String username, int loaded) {
+        if (counts.size() >= maxUsers) {
+            counts.clear();
+        }
+        LongAdder count = new LongAdder();
+        count.add(loaded);
+        LongAdder existing = counts.putIfAbsent(key(username), count);
+        return existing == null ? count : existing;
+    }
+
+    // Usernames are compared ignoring case in the database, so they are here too
+    private static String key(String username) {
+        return username.toLowerCase(Locale.ROOT);
+    }
+}
@@ -3,6 +3,10 @@ package webpatterns.persistence;
 
 import webpatterns.model.User;
 
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+
 /**
  *
  * @author Michelle
@@ -14,6 +18,11 @@ public interface UserDao
     
     // Find first user with that username
     public User findUserByUsername(String uname);
+
+    // Find all users matching a collection of usernames in as few queries as possible
+    // This will return a map of username to User (usernames compared ignoring case,
+    // as they are in the database). Usernames with no matching user are left out.
+    public Map<String, User> findUsersByUsernames(Collection<String> unames);
     
     // Check if a specific User has admin status
     // This will return true if this user has admin status,
@@ -24,6 +33,11 @@ public interface UserDao
     // This will return true if the user was added to the database
     // and false if the user couldn't be added.
     public boolean addUser(User u);
+
+    // Add many users to the database using batched inserts
+    // This will return the outcome of each user (by its position in the list): its username
+    // if it was added, or the reason it couldn't be added (e.g. the username is taken)
+    public BatchResult<String> addUsers(List<User> users);
     
     // Remove user
     // This will return true if the user could be removed from the database
@@ -7,22 +7,52 @@ import webpatterns.model.User;
 
 import java.sql.*;
 import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+
 @Slf4j
 public class UserDaoImpl extends MySQLDao implements UserDao {
+    // Upper bound on the number of usernames sent in one IN (...) list
+    private static final int IN_CHUNK_SIZE = 500;
+
+    // Friendships cascade when a user is deleted, so the cached graph has to hear about it
+    private final FriendshipGraph friendshipGraph;
+    // Concurrent lookups of the same username share one query
+    private final SingleFlight<String, User> usernameLookups = new SingleFlight<>();
+
     public UserDaoImpl(String propertiesFile) {
         super(propertiesFile);
+        this.friendshipGraph = null;
     }
 
     public UserDaoImpl(Connection conn){
         super(conn);
+        this.friendshipGraph = null;
+    }
+
+    public UserDaoImpl(ConnectionPool pool, FriendshipGraph friendshipGraph){
+        super(pool);
+        this.friendshipGraph = friendshipGraph;
     }
 
     private User mapRow(ResultSet rs) throws SQLException{
-        String firstname = rs.getString("firstName");
-        String lastname = rs.getString("lastName");
-        String username = rs.getString("username");
-        String password = rs.getString("password");
-        boolean isAdmin = rs.getBoolean("isAdmin");
+        return mapRow(rs, "");
+    }
+
+    // Map a user whose columns have been selected with a prefix on their
+    // labels (e.g. "u1_username"), for queries that join users more than once
+    static User mapRow(ResultSet rs, String prefix) throws SQLException{
+        String firstname = rs.getString(prefix + "firstName");
+        String lastname = rs.getString(prefix + "lastName");
+        String username = rs.getString(prefix + "username");
+        String password = rs.getString(prefix + "password");
+        boolean isAdmin = rs.getBoolean(prefix + "isAdmin");
         return new User(username, password, firstname, lastname, isAdmin);
     }
 
@@ -70,6 +100,13 @@ public class UserDaoImpl extends MySQLDao implements UserDao {
      */
     @Override
     public User findUserByUsername(String uname) {
+        if (uname == null) {
+            return null;
+        }
+        return coalesce(usernameLookups, uname.toLowerCase(Locale.ROOT), () -> loadUserByUsername(uname));
+    }
+
+    private User loadUserByUsername(String uname) {
         Connection con = this.getConnection();
         User u = null;
 
@@ -90,6 +127,65 @@ public class UserDaoImpl extends MySQLDao implements UserDao {
         return u;     // u may be null 
     }
 
+    /**
+     * Find the <code>Users</code> matching a collection of usernames. The
+     * usernames are looked up with <code>IN (...)</code> queries of up to
+     * 500 names each, so any number of users costs one round trip per chunk
+     * rather than one per user.
+     *
+     * @param unames The usernames of the <code>Users</code> being searched
+     *               for. Duplicates and nulls are ignored.
+     *
+     * @return A map of username to <code>User</code>, with keys compared
+     *         ignoring case (as usernames are in the database). Usernames with
+     *         no matching <code>User</code> have no entry.
+     */
+    @Override
+    public Map<String, User> findUsersByUsernames(Collection<String> unames) {
+        Map<String, User> users = new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
+        List<String> distinct = new ArrayList<>(new LinkedHashSet<>(unames));
+        distinct.removeIf(u -> u == null);
+        if (distinct.isEmpty()) {
+            return users;
+        }
+
+        Connection con = this.getConnection();
+        try {
+            for (int from = 0; from < distinct.size(); from += IN_CHUNK_SIZE) {
+                List<String> chunk = distinct.subList(from, Math.min(from + IN_CHUNK_SIZE, distinct.size()));
+                String query = "SELECT * FROM users WHERE username IN (" + placeholders(chunk.size()) + ")";
+                try (PreparedStatement ps = con.prepareStatement(query)) {
+                    for (int i = 0; i < chunk.size(); i++) {
+                        ps.setString(i + 1, chunk.get(i));
+                    }
+                    try (ResultSet rs = ps.executeQuery()) {
+                        while (rs.next()) {
+                            User u = mapRow(rs);
+                            users.put(u.getUsername(), u);
+                        }
+                    }
+                }
+            }
+        } catch (SQLException e) {
+            System.err.println(LocalDateTime.now() + ": An SQLException occurred in findUsersByUsernames().");
+            System.out.println("Error: " + e.getMessage());
+        }
+        this.freeConnection(con);
+        return users;
+    }
+
+    // Build "?, ?, ..., ?" for an IN list of the given size
+    static String placeholders(int count) {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < count; i++) {
+            if (i > 0) {
+                sb.append(", ");
+            }
+            sb.append('?');
+        }
+        return sb.toString();
+    }
+
     /**
      * Check if the <code>User</code> matching a specified username has admin
      * status.
@@ -158,6 +254,67 @@ public class UserDaoImpl extends MySQLDao implements UserDao {
         return true;
     }
 
+    /**
+     * Add many <code>Users</code> to the database, for account migrations and
+     * seeding. Taken usernames are found with one lookup per 500 users, and
+     * the rest are inserted in JDBC batches rather than one round trip each.
+     *
+     * @param users The <code>Users</code> to be added.
+     *
+     * @return The outcome for each <code>User</code>, by position: the
+     *         username if it was added, otherwise the reason it wasn't (a
+     *         missing username, a username used twice in the list, a username
+     *         that already exists, or a database error).
+     */
+    @Override
+    public BatchResult<String> addUsers(List<User> users) {
+        BatchResult<String> result = new BatchResult<>(users.size());
+        List<String> usernames = new ArrayList<>();
+        for (User u : users) {
+            if (u != null && u.getUsername() != null) {
+                usernames.add(u.getUsername());
+            }
+        }
+        Map<String, User> existing = findUsersByUsernames(usernames);
+
+        // Only the rows that passed the checks are sent to the database
+        List<User> toInsert = new ArrayList<>(users.size());
+        HashSet<String> seen = new HashSet<>();
+        for (int i = 0; i < users.size(); i++) {
+            User u = users.get(i);
+            toInsert.add(null);
+            if (u == null || u.getUsername() == null) {
+                result.failed(i, "No username supplied");
+            } else if (!seen.add(u.getUsername().toLowerCase(Locale.ROOT))) {
+                result.failed(i, "Username appears more than once in the batch");
+            } else if (existing.containsKey(u.getUsername())) {
+                result.failed(i, "Username already exists");
+            } else {
+                toInsert.set(i, u);
+            }
+        }
+
+        String query = "INSERT INTO users(username, password, firstName, lastName, isAdmin) VALUES (?, ?, ?, ?, ?)";
+        insertInBatches("addUsers", query, toInsert, false, (ps, u) -> {
+            ps.setString(1, u.getUsername());
+            ps.setString(2, u.getPassword());
+            ps.setString(3, u.getFirstName());
+            ps.setString(4, u.getLastName());
+            ps.setBoolean(5, u.isAdmin());
+        }, new BatchListener() {
+            @Override
+            public void inserted(int row, int generatedKey) {
+                result.succeeded(row, users.get(row).getUsername());
+            }
+
+            @Override
+            public void failed(int row, String reason) {
+                result.failed(row, reason);
+            }
+        });
+        return result;
+    }
+
     /**
      * Remove a <code>User</code> from the database.
      *
@@ -177,6 +334,9 @@ public class UserDaoImpl extends MySQLDao implements UserDao {
             int rowsAffected = ps.executeUpdate();
             if (rowsAffected != 0) {
                 removed = true;
+                if (friendshipGraph != null) {
+                    afterCommit(() -> friendshipGraph.removeUser(u.getUsername()));
+                }
             }
         } catch(SQLException e){
             System.err.println(LocalDateTime.now() + ": An SQLException occurred in removeUser().");
@@ -0,0 +1,392 @@
+package webpatterns.persistence;
+
+import lombok.AllArgsConstructor;
+import lombok.EqualsAndHashCode;
+import lombok.extern.slf4j.Slf4j;
+import webpatterns.model.Message;
+import webpatterns.model.MessageSummary;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Stream;
+
+/**
+ * Takes read-status updates off the request thread. <code>markMessageAsRead</code>
+ * checks that the message exists and was sent to the recipient (a read by
+ * primary key), then only records the change in a bounded queue of pending
+ * updates and returns; the queue is written to the database in batches (one
+ * <code>markMessagesAsRead</code> per recipient) every
+ * <code>flushInterval</code>, or sooner once <code>flushSize</code> updates
+ * are waiting. Marking the same message twice before a flush costs one update.
+ *
+ * Messages read back through this DAO have any pending update applied, so a
+ * user sees a message they just opened as read, and pending updates are
+ * taken off the recipient's unread count. If the queue is full,
+ * updates are written straight through instead. An update stays queued until
+ * it has been written, so one that fails is retried with the next flush.
+ * Pending updates are written out when the DAO is closed.
+ *
+ * Read status only ever goes from unread to read, so a delayed or reordered
+ * update can't undo a later change.
+ */
+@Slf4j
+public class WriteBehindMessageDao implements MessageDao, AutoCloseable {
+    private final MessageDao delegate;
+    private final int maxPending;
+    private final int flushSize;
+    // Each message waiting to be marked as read -> the recipient's username as it was given
+    private final Map<PendingRead, String> pending = new ConcurrentHashMap<>();
+    // Recipient (lower-cased) -> number of their messages in pending
+    private final Map<String, Integer> pendingPerRecipient = new ConcurrentHashMap<>();
+    // Places taken in the queue, reserved before an entry is added so maxPending is never exceeded
+    private final AtomicInteger reserved = new AtomicInteger();
+    private final ScheduledExecutorService flusher = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "read-status-flush");
+        t.setDaemon(true);
+        return t;
+    });
+    private final AtomicBoolean flushRequested = new AtomicBoolean();
+
+    public WriteBehindMessageDao(MessageDao delegate, int maxPending, int flushSize, long flushInterval,
+                                 TimeUnit unit) {
+        this.delegate = delegate;
+        this.maxPending = maxPending;
+        this.flushSize = flushSize;
+        flusher.scheduleWithFixedDelay(this::flushQuietly, flushInterval, flushInterval, unit);
+    }
+
+    /**
+     * Queue a message to be marked as read.
+     *
+     * @return True if the message exists and was sent to the recipient (it is
+     *         then queued, unless it is already read), false otherwise. If
+     *         the queue is full the update is made straight away and its real
+     *         result returned.
+     */
+    @Override
+    public boolean markMessageAsRead(int messageID, String recipient) {
+        if (recipient == null) {
+            return false;
+        }
+        PendingRead read = new PendingRead(messageID, key(recipient));
+        if (pending.containsKey(read)) {
+            return true;
+        }
+        Message m = delegate.getMessageById(messageID);
+        if (m == null || !recipient.equalsIgnoreCase(m.getRecipient())) {
+            return false;
+        }
+        if (m.isReadStatus()) {
+            return true;
+        }
+        // Only unread messages in the mailbox are queued, since each one queued is taken off the unread count
+        if (m.isDeletedForRecipient()) {
+            return delegate.markMessageAsRead(messageID, recipient);
+        }
+
+        if (reserved.incrementAndGet() > maxPending) {
+            reserved.decrementAndGet();
+            requestFlush();
+            return delegate.markMessageAsRead(messageID, recipient);
+        }
+        if (pending.putIfAbsent(read, recipient) != null) {
+            reserved.decrementAndGet();
+            return true;
+        }
+        pendingPerRecipient.merge(read.recipient, 1, Integer::sum);
+        if (reserved.get() >= flushSize) {
+            requestFlush();
+        }
+        return true;
+    }
+
+    /**
+     * Write every pending update to the database now. Updates are only taken
+     * off the queue once written; any the database refused stay queued.
+     *
+     * @return The number of messages the database marked as read.
+     */
+    public int flush() {
+        return flush(null);
+    }
+
+    // Write the pending updates of one recipient (lower-cased), or of everyone if null
+    private synchronized int flush(String onlyRecipient) {
+        // Snapshot, grouped by recipient
+        Map<String, List<PendingRead>> byRecipient = new HashMap<>();
+        Map<String, String> spelling = new HashMap<>();
+        for (Map.Entry<PendingRead, String> e : pending.entrySet()) {
+            if (onlyRecipient != null && !onlyRecipient.equals(e.getKey().recipient)) {
+                continue;
+            }
+            byRecipient.computeIfAbsent(e.getKey().recipient, k -> new ArrayList<>()).add(e.getKey());
+            spelling.putIfAbsent(e.getKey().recipient, e.getValue());
+        }
+        int updated = 0;
+        for (Map.Entry<String, List<PendingRead>> e : byRecipient.entrySet()) {
+            List<Integer> ids = new ArrayList<>(e.getValue().size());
+            for (PendingRead read : e.getValue()) {
+                ids.add(read.messageID);
+            }
+            int marked;
+            try {
+                marked = delegate.markMessagesAsRead(ids, spelling.get(e.getKey()));
+            } catch (RuntimeException ex) {
+                log.error("Writing {} read status updates failed, keeping them queued", ids.size(), ex);
+                continue;
+            }
+            if (marked < 0) {
+                log.warn("Writing {} read status updates failed, keeping them queued", ids.size());
+                continue;
+            }
+            updated += marked;
+            for (PendingRead read : e.getValue()) {
+                if (pending.remove(read) != null) {
+                    reserved.decrementAndGet();
+                    pendingPerRecipient.computeIfPresent(read.recipient, (k, n) -> n == 1 ? null : n - 1);
+                }
+            }
+        }
+        return updated;
+    }
+
+    public int getPendingCount() {
+        return pending.size();
+    }
+
+    // Write everything still queued before going away
+    @Override
+    public void close() {
+        flusher.shutdown();
+        try {
+            if (!flusher.awaitTermination(10, TimeUnit.SECONDS)) {
+                log.warn("Read status flush still running at shutdown");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        flushQuietly();
+        if (!pending.isEmpty()) {
+            log.warn("{} read status updates could not be written at shutdown", pending.size());
+        }
+    }
+
+    private void requestFlush() {
+        if (flushRequested.compareAndSet(false, true)) {
+            try {
+                flusher.execute(this::flushQuietly);
+            } catch (RuntimeException e) {
+                flushRequested.set(false);
+                log.warn("Unable to schedule a read status flush: {}", e.getMessage());
+            }
+        }
+    }
+
+    private void flushQuietly() {
+        flushRequested.set(false);
+        try {
+            flush();
+        } catch (RuntimeException e) {
+            log.error("Writing pending read status updates failed", e);
+        }
+    }
+
+    // Write a recipient's pending updates before another change to their mailbox, so the
+    // change doesn't also take one of them off the unread count
+    private void flushRecipient(String recipient) {
+        if (recipient != null && pendingPerRecipient.containsKey(key(recipient))) {
+            try {
+                flush(key(recipient));
+            } catch (RuntimeException e) {
+                log.error("Writing pending read status updates failed", e);
+            }
+        }
+    }
+
+    private boolean isPending(int messageID, String recipient) {
+        return recipient != null && pending.containsKey(new PendingRead(messageID, key(recipient)));
+    }
+
+    // Show a message as read if it is waiting to be marked as read
+    private Message withPendingState(Message m) {
+        if (m == null || m.isReadStatus() || !isPending(m.getMessageID(), m.getRecipient())) {
+            return m;
+        }
+        return m.toBuilder().readStatus(true).build();
+    }
+
+    private MessageSummary withPendingState(MessageSummary m) {
+        if (m.isReadStatus() || !isPending(m.getMessageID(), m.getRecipient())) {
+            return m;
+        }
+        return m.toBuilder().readStatus(true).build();
+    }
+
+    private ArrayList<Message> withPendingState(ArrayList<Message> messages) {
+        if (!pending.isEmpty()) {
+            messages.replaceAll(this::withPendingState);
+        }
+        return messages;
+    }
+
+    private ArrayList<MessageSummary> withPendingSummaryState(ArrayList<MessageSummary> summaries) {
+        if (!pending.isEmpty()) {
+            summaries.replaceAll(this::withPendingState);
+        }
+        return summaries;
+    }
+
+    // Usernames are compared ignoring case in the database, so they are here too
+    private static String key(String username) {
+        return username.toLowerCase(Locale.ROOT);
+    }
+
+    @Override
+    public Message getMessageById(int messageID) {
+        return withPendingState(delegate.getMessageById(messageID));
+    }
+
+    @Override
+    public ArrayList<Message> getSentMessagesForUser(String senderName) {
+        return withPendingState(delegate.getSentMessagesForUser(senderName));
+    }
+
+    @Override
+    public ArrayList<Message> getReceivedMessagesForUser(String recipientName) {
+        return withPendingState(delegate.getReceivedMessagesForUser(recipientName));
+    }
+
+    @Override
+    public ArrayList<Message> getSentMessagesPage(String senderName, MessageCursor after, int limit) {
+        return withPendingState(delegate.getSentMessagesPage(senderName, after, limit));
+    }
+
+    @Override
+    public ArrayList<Message> getReceivedMessagesPage(String recipientName, MessageCursor after, int limit) {
+        return withPendingState(delegate.getReceivedMessagesPage(recipientName, after, limit));
+    }
+
+    @Override
+    public ArrayList<MessageSummary> getSentMessageSummaries(String senderName, MessageCursor after, int limit) {
+        return withPendingSummaryState(delegate.getSentMessageSummaries(senderName, after, limit));
+    }
+
+    @Override
+    public ArrayList<MessageSummary> getReceivedMessageSummaries(String recipientName, MessageCursor after,
+                                                                 int limit) {
+        return withPendingSummaryState(delegate.getReceivedMessageSummaries(recipientName, after, limit));
+    }
+
+    @Override
+    public ArrayList<Message> getConversation(String username, String otherUser, MessageCursor after, int limit) {
+        return withPendingState(delegate.getConversation(username, otherUser, after, limit));
+    }
+
+    @Override
+    public ArrayList<Message> getAllMailPage(String username, MessageCursor after, int limit) {
+        return withPendingState(delegate.getAllMailPage(username, after, limit));
+    }
+
+    @Override
+    public int sendMessage(String sender, String recipient, String subject, String body) {
+        return delegate.sendMessage(sender, recipient, subject, body);
+    }
+
+    @Override
+    public Map<String, Integer> broadcastToFriends(String sender, String subject, String body) {
+        return delegate.broadcastToFriends(sender, subject, body);
+    }
+
+    @Override
+    public int markMessagesAsRead(Collection<Integer> messageIDs, String recipient) {
+        flushRecipient(recipient);
+        return delegate.markMessagesAsRead(messageIDs, recipient);
+    }
+
+    @Override
+    public int markAllMessagesAsRead(String recipient) {
+        flushRecipient(recipient);
+        return delegate.markAllMessagesAsRead(recipient);
+    }
+
+    // Messages waiting to be marked as read are still unread in the database, so they are taken
+    // off here. While a flush is part way through one can briefly be taken off twice.
+    @Override
+    public int getUnreadCount(String recipient) {
+        int unread = delegate.getUnreadCount(recipient);
+        if (recipient == null) {
+            return unread;
+        }
+        return Math.max(0, unread - pendingPerRecipient.getOrDefault(key(recipient), 0));
+    }
+
+    @Override
+    public boolean deleteMessageForSender(int messageID, String sender) {
+        return delegate.deleteMessageForSender(messageID, sender);
+    }
+
+    @Override
+    public boolean deleteMessageForRecipient(int messageID, String recipient) {
+        flushRecipient(recipient);
+        return delegate.deleteMessageForRecipient(messageID, recipient);
+    }
+
+    @Override
+    public int deleteMessagesForSender(Collection<Integer> messageIDs, String sender) {
+        return delegate.deleteMessagesForSender(messageIDs, sender);
+    }
+
+    @Override
+    public int deleteMessagesForRecipient(Collection<Integer> messageIDs, String recipient) {
+        flushRecipient(recipient);
+        return delegate.deleteMessagesForRecipient(messageIDs, recipient);
+    }
+
+    @Override
+    public int emptySentFolder(String sender) {
+        return delegate.emptySentFolder(sender);
+    }
+
+    @Override
+    public List<Message> getAllMessages() {
+        List<Message> messages = delegate.getAllMessages();
+        if (!pending.isEmpty()) {
+            messages.replaceAll(this::withPendingState);
+        }
+        return messages;
+    }
+
+    @Override
+    public ArrayList<Message> searchMessages(String username, String query, int page, int pageSize) {
+        return withPendingState(delegate.searchMessages(username, query, page, pageSize));
+    }
+
+    @Override
+    public Stream<Message> streamAllMessages() {
+        return delegate.streamAllMessages().map(this::withPendingState);
+    }
+
+    @Override
+    public Stream<Message> streamSentMessagesForUser(String senderName) {
+        return delegate.streamSentMessagesForUser(senderName).map(this::withPendingState);
+    }
+
+    // A message waiting to be marked as read for a recipient (lower-cased). Keyed by both, so a
+    // caller who isn't the recipient can't replace the real recipient's pending update.
+    @EqualsAndHashCode
+    @AllArgsConstructor
+    private static final class PendingRead {
+        private final int messageID;
+        private final String recipient;
+    }
+}
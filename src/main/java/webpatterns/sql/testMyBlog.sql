@@ -21,6 +21,8 @@ create table if not exists blog_entries
     title varchar(150),
     content varchar(600),
     PRIMARY KEY (entryID),
+    -- Permalink lookups (findBlogEntryByTitle); InnoDB keeps equal titles in entryID order
+    INDEX idx_blog_entries_title (title),
     FOREIGN KEY (username) REFERENCES users(username) on delete cascade
     );
 
@@ -30,6 +32,8 @@ create table if not exists friends
     friend1 varchar(10) not null,
     friend2 varchar(10) not null,
     PRIMARY KEY (friend1, friend2),
+    -- Reverse lookup: the primary key only helps when searching on friend1
+    INDEX idx_friends_friend2 (friend2, friend1),
     FOREIGN KEY (friend1) REFERENCES users(username) on delete cascade,
     FOREIGN KEY (friend2) REFERENCES users(username) on delete cascade
     );
@@ -68,6 +72,13 @@ create table if not exists messages
     deletedForRecipient boolean not null default FALSE,
     dateSent timestamp not null,
     PRIMARY KEY(messageID),
+    -- Mailbox listings: a user's undeleted sent/received messages, newest first
+    INDEX idx_messages_recipient (recipient, deletedForRecipient, dateSent),
+    INDEX idx_messages_sender (sender, deletedForSender, dateSent),
+    -- Conversations between two users (getConversation), one direction at a time
+    INDEX idx_messages_conversation (sender, recipient, dateSent),
+    -- Message search (searchMessages)
+    FULLTEXT INDEX ft_messages_subject_body (subject, body),
     FOREIGN KEY (sender) REFERENCEs users(username) on delete cascade,
     FOREIGN KEY (recipient) REFERENCES users(username) on delete cascade
     );
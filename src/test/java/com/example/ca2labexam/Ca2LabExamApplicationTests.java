@@ -2,8 +2,9 @@ package com.example.ca2labexam;
 
 import org.junit.jupiter.api.Test;
 import org.springframework.boot.test.context.SpringBootTest;
+import webpatterns.Ca2LabExamApplication;
 
-@SpringBootTest
+@SpringBootTest(classes = Ca2LabExamApplication.class)
 class Ca2LabExamApplicationTests {
 
     @Test
@@ -0,0 +1,77 @@
+package webpatterns.persistence;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import webpatterns.model.BlogEntry;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+/**
+ * Checks that searchBlogEntries pages over the entries that still exist, so
+ * an entry deleted behind the DAO's back (and still in its search index)
+ * doesn't leave a page short. Runs against an in-memory H2 database.
+ */
+class BlogEntryDaoImplTest {
+    private Connection h2;
+    private BlogEntryDaoImpl blogEntryDao;
+
+    @BeforeEach
+    void setUp() throws SQLException {
+        h2 = DriverManager.getConnection("jdbc:h2:mem:blogentries;MODE=MySQL;DB_CLOSE_DELAY=-1");
+        try (Statement st = h2.createStatement()) {
+            st.execute("DROP ALL OBJECTS");
+            st.execute("create table blog_entries (entryID int not null AUTO_INCREMENT, username varchar(10) not null, "
+                    + "title varchar(150), content varchar(600), PRIMARY KEY (entryID))");
+        }
+        try (PreparedStatement ps = h2.prepareStatement(
+                "INSERT INTO blog_entries (username, title, content) VALUES ('Rick', ?, 'Same words')")) {
+            for (int i = 1; i <= 5; i++) {
+                ps.setString(1, "Entry " + i);
+                ps.executeUpdate();
+            }
+        }
+        blogEntryDao = new BlogEntryDaoImpl(h2);
+        blogEntryDao.buildSearchIndex();
+    }
+
+    @AfterEach
+    void tearDown() throws SQLException {
+        h2.close();
+    }
+
+    @Test
+    void pagesFollowTheRanking() {
+        // Every entry matches equally, so the newest ranks first
+        assertEquals(List.of(5, 4), ids(blogEntryDao.searchBlogEntries("words", 0, 2)));
+        assertEquals(List.of(3, 2), ids(blogEntryDao.searchBlogEntries("words", 1, 2)));
+        assertEquals(List.of(1), ids(blogEntryDao.searchBlogEntries("words", 2, 2)));
+    }
+
+    @Test
+    void entryDeletedOutsideTheDaoDoesNotShortenItsPage() throws SQLException {
+        try (Statement st = h2.createStatement()) {
+            st.execute("DELETE FROM blog_entries WHERE entryID = 3");
+        }
+
+        assertEquals(List.of(5, 4), ids(blogEntryDao.searchBlogEntries("words", 0, 2)));
+        assertEquals(List.of(2, 1), ids(blogEntryDao.searchBlogEntries("words", 1, 2)));
+        assertEquals(List.of(), ids(blogEntryDao.searchBlogEntries("words", 2, 2)));
+    }
+
+    private static List<Integer> ids(List<BlogEntry> entries) {
+        List<Integer> ids = new ArrayList<>();
+        for (BlogEntry b : entries) {
+            ids.add(b.getEntryId());
+        }
+        return ids;
+    }
+}
@@ -0,0 +1,166 @@
+package webpatterns.persistence;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import webpatterns.model.Friendship;
+import webpatterns.model.User;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Guards against FriendshipDaoImpl going back to looking up each friend with
+ * its own query (N+1), and checks that its in-memory friendship graph only
+ * takes changes that were committed. Runs against an in-memory H2 database
+ * and counts the statements the DAO prepares.
+ */
+class FriendshipDaoImplTest {
+    private static final int FRIEND_COUNT = 50;
+
+    private Connection h2;
+    private final AtomicInteger statementCount = new AtomicInteger();
+    private FriendshipDaoImpl friendshipDao;
+
+    @BeforeEach
+    void setUp() throws SQLException {
+        h2 = DriverManager.getConnection("jdbc:h2:mem:friendships;MODE=MySQL;DB_CLOSE_DELAY=-1");
+        try (Statement st = h2.createStatement()) {
+            st.execute("DROP ALL OBJECTS");
+            st.execute("create table users (username varchar(20) not null, password varchar(10) not null, "
+                    + "firstName varchar(20), lastName varchar(30), isAdmin boolean not null default FALSE, "
+                    + "PRIMARY KEY (username))");
+            st.execute("create table friends (friend1 varchar(10) not null, friend2 varchar(10) not null, "
+                    + "PRIMARY KEY (friend1, friend2))");
+        }
+        try (PreparedStatement ps = h2.prepareStatement("INSERT INTO users VALUES (?, 'password', ?, ?, FALSE)")) {
+            addUser(ps, "Rick");
+            for (int i = 0; i < FRIEND_COUNT; i++) {
+                addUser(ps, friendName(i));
+            }
+            addUser(ps, "Loner");
+        }
+        try (PreparedStatement ps = h2.prepareStatement("INSERT INTO friends VALUES (?, ?)")) {
+            for (int i = 0; i < FRIEND_COUNT; i++) {
+                // Friendships are stored in alphabetical order (enforced by a trigger in MySQL)
+                String friend = friendName(i);
+                ps.setString(1, friend.compareTo("Rick") < 0 ? friend : "Rick");
+                ps.setString(2, friend.compareTo("Rick") < 0 ? "Rick" : friend);
+                ps.executeUpdate();
+            }
+        }
+
+        friendshipDao = new FriendshipDaoImpl(countingConnection(h2));
+    }
+
+    @AfterEach
+    void tearDown() throws SQLException {
+        h2.close();
+    }
+
+    @Test
+    void findFriendshipsByUsernameUsesOneQueryRegardlessOfFriendCount() {
+        ArrayList<Friendship> friends = friendshipDao.findFriendshipsByUsername("Rick");
+
+        assertEquals(FRIEND_COUNT, friends.size());
+        assertEquals(1, statementCount.get());
+        for (Friendship f : friends) {
+            assertNotNull(f.getUser1().getFirstName());
+            assertNotNull(f.getUser2().getFirstName());
+        }
+    }
+
+    @Test
+    void streamFriendshipsByUsernameUsesOneQuery() {
+        try (Stream<Friendship> friends = friendshipDao.streamFriendshipsByUsername("Rick")) {
+            assertEquals(FRIEND_COUNT, friends.count());
+        }
+        assertEquals(1, statementCount.get());
+    }
+
+    @Test
+    void checkFriendshipStatusUsesOneQuery() {
+        Friendship f = friendshipDao.checkFriendshipStatus("Rick", friendName(2));
+
+        assertNotNull(f);
+        assertEquals(1, statementCount.get());
+        assertEquals(new Friendship(new User("Rick", null, null, null, false),
+                new User(friendName(2), null, null, null, false)), f);
+        assertEquals("First " + friendName(2), f.getUser1().getFirstName());
+    }
+
+    @Test
+    void checkFriendshipStatusReturnsNullWhenNotFriends() {
+        assertNull(friendshipDao.checkFriendshipStatus("Rick", "Loner"));
+        assertEquals(1, statementCount.get());
+    }
+
+    @Test
+    void rolledBackChangesDontReachTheGraph() {
+        // Load the graph first, so later answers come from it rather than the database
+        assertFalse(friendshipDao.areFriends("Rick", "Loner"));
+        assertTrue(friendshipDao.areFriends("Rick", friendName(1)));
+
+        friendshipDao.inUnitOfWork(() -> {
+            friendshipDao.addFriendship("Loner", "Rick");
+            friendshipDao.removeFriendship("Rick", friendName(1));
+            friendshipDao.setRollbackOnly();
+            return null;
+        });
+
+        assertFalse(friendshipDao.areFriends("Rick", "Loner"));
+        assertTrue(friendshipDao.areFriends("Rick", friendName(1)));
+    }
+
+    @Test
+    void committedChangesReachTheGraph() {
+        assertFalse(friendshipDao.areFriends("Rick", "Loner"));
+
+        friendshipDao.inUnitOfWork(() -> friendshipDao.addFriendship("Loner", "Rick"));
+
+        assertTrue(friendshipDao.areFriends("Rick", "Loner"));
+        assertEquals(FRIEND_COUNT + 1, friendshipDao.findFriendNames("Rick").size());
+    }
+
+    private static String friendName(int i) {
+        // Half sort before "Rick" and half after, so both columns get used
+        return (i % 2 == 0 ? "A" : "Z") + i;
+    }
+
+    private static void addUser(PreparedStatement ps, String username) throws SQLException {
+        ps.setString(1, username);
+        ps.setString(2, "First " + username);
+        ps.setString(3, "Last " + username);
+        ps.executeUpdate();
+    }
+
+    // Wrap a connection so that every statement prepared or created on it is counted
+    private Connection countingConnection(Connection target) {
+        return (Connection) Proxy.newProxyInstance(getClass().getClassLoader(), new Class<?>[]{Connection.class},
+                (proxy, method, args) -> {
+                    String name = method.getName();
+                    if (name.startsWith("prepare") || name.equals("createStatement")) {
+                        statementCount.incrementAndGet();
+                    }
+                    try {
+                        return method.invoke(target, args);
+                    } catch (InvocationTargetException e) {
+                        throw e.getCause();
+                    }
+                });
+    }
+}
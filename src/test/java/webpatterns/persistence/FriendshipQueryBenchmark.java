@@ -0,0 +1,164 @@
+package webpatterns.persistence;
+
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.condition.EnabledIfSystemProperty;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+
+/**
+ * Compares the old "friend1 = ? OR friend2 = ?" friendship lookup with the
+ * UNION ALL version used by FriendshipDaoImpl, on a large synthetic friend
+ * graph in a scratch MySQL database (myBlog_bench, dropped afterwards).
+ *
+ * The "before" table only has its primary key (no foreign keys, which would
+ * quietly add an index on friend2). The benchmark prints the EXPLAIN plan and
+ * average time of each query, and fails if the new query still needs a full
+ * scan once idx_friends_friend2 exists.
+ *
+ * Only runs when pointed at a MySQL server, e.g.
+ * <pre>
+ *   mvn test -Dtest=FriendshipQueryBenchmark -Dbenchmark.mysql.url=jdbc:mysql://127.0.0.1:3306/ \
+ *            -Dbenchmark.mysql.user=root -Dbenchmark.mysql.password=
+ * </pre>
+ */
+@EnabledIfSystemProperty(named = "benchmark.mysql.url", matches = ".+")
+class FriendshipQueryBenchmark {
+    private static final String DATABASE = "myBlog_bench";
+    private static final int USERS = 20_000;
+    private static final int FRIENDS_PER_USER = 20;
+    private static final int RUNS = 500;
+
+    private static final String OLD_QUERY = "SELECT * FROM friends WHERE friend1 = ? OR friend2 = ?";
+    private static final String NEW_QUERY = "SELECT * FROM friends WHERE friend1 = ? "
+            + "UNION ALL SELECT * FROM friends WHERE friend2 = ? AND friend1 <> friend2";
+
+    private static Connection con;
+
+    @BeforeAll
+    static void buildGraph() throws SQLException {
+        String url = System.getProperty("benchmark.mysql.url");
+        con = DriverManager.getConnection(url + "?rewriteBatchedStatements=true",
+                System.getProperty("benchmark.mysql.user", "root"),
+                System.getProperty("benchmark.mysql.password", ""));
+        try (Statement st = con.createStatement()) {
+            st.execute("DROP DATABASE IF EXISTS " + DATABASE);
+            st.execute("CREATE DATABASE " + DATABASE);
+            st.execute("USE " + DATABASE);
+            st.execute("create table friends (friend1 varchar(10) not null, friend2 varchar(10) not null, "
+                    + "PRIMARY KEY (friend1, friend2))");
+        }
+
+        Random random = new Random(42);
+        con.setAutoCommit(false);
+        try (PreparedStatement ps = con.prepareStatement("INSERT IGNORE INTO friends VALUES (?, ?)")) {
+            int batched = 0;
+            for (int u = 0; u < USERS; u++) {
+                for (int f = 0; f < FRIENDS_PER_USER / 2; f++) {
+                    int other = random.nextInt(USERS);
+                    if (other == u) {
+                        continue;
+                    }
+                    String a = username(u), b = username(other);
+                    ps.setString(1, a.compareTo(b) < 0 ? a : b);
+                    ps.setString(2, a.compareTo(b) < 0 ? b : a);
+                    ps.addBatch();
+                    if (++batched % 5_000 == 0) {
+                        ps.executeBatch();
+                    }
+                }
+            }
+            ps.executeBatch();
+        }
+        con.commit();
+        con.setAutoCommit(true);
+        try (Statement st = con.createStatement()) {
+            st.execute("ANALYZE TABLE friends");
+        }
+    }
+
+    @AfterAll
+    static void dropGraph() throws SQLException {
+        if (con != null) {
+            try (Statement st = con.createStatement()) {
+                st.execute("DROP DATABASE IF EXISTS " + DATABASE);
+            }
+            con.close();
+        }
+    }
+
+    @Test
+    void unionAllUsesReverseIndex() throws SQLException {
+        List<String> oldPlan = explain(OLD_QUERY);
+        double oldMillis = time(OLD_QUERY);
+
+        try (Statement st = con.createStatement()) {
+            st.execute("ALTER TABLE friends ADD INDEX idx_friends_friend2 (friend2, friend1)");
+            st.execute("ANALYZE TABLE friends");
+        }
+        List<String> newPlan = explain(NEW_QUERY);
+        double newMillis = time(NEW_QUERY);
+
+        System.out.println("Friend graph: " + USERS + " users, ~" + (USERS * FRIENDS_PER_USER / 2) + " friendships");
+        System.out.printf("OR query        : %.3f ms/query, plan %s%n", oldMillis, oldPlan);
+        System.out.printf("UNION ALL query : %.3f ms/query, plan %s%n", newMillis, newPlan);
+
+        assertEquals(2, newPlan.size());
+        assertFalse(newPlan.stream().anyMatch(p -> p.startsWith("ALL")), "UNION ALL query still scans: " + newPlan);
+    }
+
+    // Access type and key for each table access in the plan, e.g. "ref/idx_friends_friend2"
+    private static List<String> explain(String query) throws SQLException {
+        List<String> plan = new ArrayList<>();
+        try (PreparedStatement ps = con.prepareStatement("EXPLAIN " + query)) {
+            bind(ps, username(1234));
+            try (ResultSet rs = ps.executeQuery()) {
+                while (rs.next()) {
+                    if (rs.getString("table") != null && !rs.getString("table").startsWith("<union")) {
+                        plan.add(rs.getString("type") + "/" + rs.getString("key"));
+                    }
+                }
+            }
+        }
+        return plan;
+    }
+
+    private static double time(String query) throws SQLException {
+        Random random = new Random(7);
+        long rows = 0;
+        long start = System.nanoTime();
+        try (PreparedStatement ps = con.prepareStatement(query)) {
+            for (int i = 0; i < RUNS; i++) {
+                bind(ps, username(random.nextInt(USERS)));
+                try (ResultSet rs = ps.executeQuery()) {
+                    while (rs.next()) {
+                        rows++;
+                    }
+                }
+            }
+        }
+        assertFalse(rows == 0, "benchmark queries found no friendships");
+        return (System.nanoTime() - start) / 1_000_000.0 / RUNS;
+    }
+
+    private static void bind(PreparedStatement ps, String username) throws SQLException {
+        ps.setString(1, username);
+        ps.setString(2, username);
+    }
+
+    private static String username(int i) {
+        return "u" + i;
+    }
+}
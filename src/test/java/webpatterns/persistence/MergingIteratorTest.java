@@ -0,0 +1,172 @@
+package webpatterns.persistence;
+
+import org.junit.jupiter.api.Test;
+import webpatterns.model.Message;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Timestamp;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+/**
+ * Checks MergingIterator on its own, and getAllMailPage (which merges the
+ * sent and received sides of a mailbox) against an in-memory H2 database,
+ * paging with cursors that land part way through both sides.
+ */
+class MergingIteratorTest {
+    private static final LocalDateTime T1 = LocalDateTime.of(2024, 1, 1, 9, 0);
+    private static final LocalDateTime T2 = T1.plusHours(1);
+    private static final LocalDateTime T3 = T1.plusHours(2);
+
+    // The order of a mailbox page: newest first, ties broken by the higher id
+    private static final Comparator<Message> NEWEST_FIRST = Comparator.<Message>naturalOrder()
+            .thenComparing(Message::getMessageID, Comparator.reverseOrder());
+
+    @Test
+    void mergesSortedSourcesIntoOneSortedSequence() {
+        Iterator<Integer> merged = new MergingIterator<>(Comparator.naturalOrder(), List.of(
+                List.of(1, 4, 7).iterator(), List.of(2, 5, 8).iterator(), List.of(3, 6, 9).iterator()));
+
+        assertEquals(List.of(1, 2, 3, 4, 5, 6, 7, 8, 9), drain(merged));
+    }
+
+    @Test
+    void tiesOnDateSentAreBrokenByMessageId() {
+        Iterator<Message> merged = new MergingIterator<>(NEWEST_FIRST, List.of(
+                List.of(message(6, T2), message(3, T2), message(1, T1)).iterator(),
+                List.of(message(5, T2), message(4, T2), message(2, T1)).iterator()));
+
+        assertEquals(List.of(6, 5, 4, 3, 2, 1), ids(drain(merged)));
+    }
+
+    @Test
+    void emptySourcesAreSkipped() {
+        Iterator<Integer> merged = new MergingIterator<>(Comparator.naturalOrder(), List.of(
+                List.<Integer>of().iterator(), List.of(1, 3).iterator(), List.<Integer>of().iterator(),
+                List.of(2).iterator()));
+
+        assertEquals(List.of(1, 2, 3), drain(merged));
+    }
+
+    @Test
+    void noSourcesOrOnlyEmptyOnesGiveNothing() {
+        Iterator<Integer> none = new MergingIterator<>(Comparator.naturalOrder(), List.of());
+        Iterator<Integer> allEmpty = new MergingIterator<>(Comparator.naturalOrder(), List.of(
+                List.<Integer>of().iterator(), List.<Integer>of().iterator()));
+
+        assertFalse(none.hasNext());
+        assertFalse(allEmpty.hasNext());
+        assertThrows(NoSuchElementException.class, none::next);
+    }
+
+    @Test
+    void sourcesAreOnlyReadAsFarAsNeeded() {
+        AtomicInteger read = new AtomicInteger();
+        Iterator<Integer> merged = new MergingIterator<>(Comparator.naturalOrder(), List.of(
+                counting(List.of(1, 2, 3, 4), read), counting(List.of(10, 11, 12), read)));
+
+        assertEquals(1, merged.next());
+        assertEquals(2, merged.next());
+        // One head from each source, plus the element that replaced 1
+        assertEquals(3, read.get());
+    }
+
+    @Test
+    void allMailPagesResumeFromCursorsPartWayThroughEachSide() throws SQLException {
+        try (Connection h2 = DriverManager.getConnection("jdbc:h2:mem:allmail;MODE=MySQL;DB_CLOSE_DELAY=-1")) {
+            try (Statement st = h2.createStatement()) {
+                st.execute("DROP ALL OBJECTS");
+                st.execute("create table messages (messageID int not null, sender varchar(20) not null, "
+                        + "recipient varchar(20) not null, subject varchar(50), body varchar(200), "
+                        + "readStatus boolean not null default FALSE, deletedForSender boolean not null default FALSE, "
+                        + "deletedForRecipient boolean not null default FALSE, dateSent timestamp not null, "
+                        + "PRIMARY KEY (messageID))");
+            }
+            try (PreparedStatement ps = h2.prepareStatement(
+                    "INSERT INTO messages (messageID, sender, recipient, subject, body, dateSent) "
+                            + "VALUES (?, ?, ?, 'Subject', 'Body', ?)")) {
+                insert(ps, 1, "Bob", "Alice", T1);
+                insert(ps, 2, "Alice", "Bob", T1);
+                insert(ps, 3, "Bob", "Alice", T2);
+                insert(ps, 4, "Alice", "Bob", T2);
+                insert(ps, 5, "Bob", "Alice", T2);
+                insert(ps, 6, "Alice", "Bob", T3);
+                // Sent to himself, so on both sides of the mailbox
+                insert(ps, 7, "Bob", "Bob", T2);
+                insert(ps, 8, "Alice", "Carol", T3);
+            }
+            MessageDaoImpl messageDao = new MessageDaoImpl(h2);
+
+            for (int limit = 1; limit <= 4; limit++) {
+                List<Integer> all = new ArrayList<>();
+                MessageCursor after = null;
+                List<Message> page;
+                do {
+                    page = messageDao.getAllMailPage("Bob", after, limit);
+                    all.addAll(ids(page));
+                    if (!page.isEmpty()) {
+                        after = MessageCursor.after(page.get(page.size() - 1));
+                    }
+                } while (page.size() == limit);
+
+                assertEquals(List.of(6, 7, 5, 4, 3, 2, 1), all, "pages of " + limit);
+            }
+        }
+    }
+
+    private static void insert(PreparedStatement ps, int id, String sender, String recipient, LocalDateTime sent)
+            throws SQLException {
+        ps.setInt(1, id);
+        ps.setString(2, sender);
+        ps.setString(3, recipient);
+        ps.setTimestamp(4, Timestamp.valueOf(sent));
+        ps.executeUpdate();
+    }
+
+    private static Message message(int id, LocalDateTime sent) {
+        return new Message(id, "Alice", "Bob", "Subject", "Body", false, false, false, sent);
+    }
+
+    private static Iterator<Integer> counting(List<Integer> values, AtomicInteger read) {
+        Iterator<Integer> source = values.iterator();
+        return new Iterator<>() {
+            @Override
+            public boolean hasNext() {
+                return source.hasNext();
+            }
+
+            @Override
+            public Integer next() {
+                read.incrementAndGet();
+                return source.next();
+            }
+        };
+    }
+
+    private static <T> List<T> drain(Iterator<T> iterator) {
+        List<T> values = new ArrayList<>();
+        iterator.forEachRemaining(values::add);
+        return values;
+    }
+
+    private static List<Integer> ids(List<Message> messages) {
+        List<Integer> ids = new ArrayList<>();
+        for (Message m : messages) {
+            ids.add(m.getMessageID());
+        }
+        return ids;
+    }
+}
@@ -0,0 +1,99 @@
+package webpatterns.persistence;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Checks TextIndex's ranking and tokenizing, and that searches with nothing
+ * to match come back empty.
+ */
+class TextIndexTest {
+
+    @Test
+    void rareWordsRankAboveCommonOnes() {
+        TextIndex index = new TextIndex();
+        index.add(1, "", "java tips");
+        index.add(2, "", "java spring");
+        index.add(3, "", "java news");
+
+        assertEquals(List.of(2, 3, 1), index.search("java spring"));
+    }
+
+    @Test
+    void headingCountsForMoreThanText() {
+        TextIndex index = new TextIndex();
+        index.add(1, "Holiday", "Photos from the trip");
+        index.add(2, "Photos", "From our holiday");
+
+        assertEquals(List.of(1, 2), index.search("holiday"));
+    }
+
+    @Test
+    void moreOccurrencesRankHigher() {
+        TextIndex index = new TextIndex();
+        index.add(1, "", "cheese");
+        index.add(2, "", "cheese cheese cheese");
+        index.add(3, "", "bread");
+
+        assertEquals(List.of(2, 1), index.search("cheese"));
+    }
+
+    @Test
+    void tiesGoToTheNewerDocument() {
+        TextIndex index = new TextIndex();
+        index.add(1, "Same", "words");
+        index.add(2, "Same", "words");
+
+        assertEquals(List.of(2, 1), index.search("same"));
+    }
+
+    @Test
+    void replacedAndRemovedDocumentsAreNotFound() {
+        TextIndex index = new TextIndex();
+        index.add(1, "Old", "title");
+        index.add(1, "New", "title");
+        index.add(2, "Gone", "soon");
+        index.remove(2);
+
+        assertEquals(List.of(), index.search("old"));
+        assertEquals(List.of(1), index.search("new"));
+        assertEquals(List.of(), index.search("gone"));
+        assertEquals(1, index.size());
+    }
+
+    @Test
+    void tokenizeLowerCasesAndSplitsOnPunctuation() {
+        assertEquals(List.of("hello", "world"), TextIndex.tokenize("--Hello,   WORLD!"));
+        assertEquals(List.of("don", "mail"), TextIndex.tokenize("Don't e-mail"));
+        assertEquals(List.of("café", "2024"), TextIndex.tokenize("Café 2024"));
+    }
+
+    @Test
+    void tokenizeDropsStopWordsAndSingleCharacters() {
+        assertEquals(List.of("cat", "sat", "mat"), TextIndex.tokenize("The cat sat on a mat, x"));
+        assertTrue(TextIndex.tokenize("it is to be").isEmpty());
+    }
+
+    @Test
+    void tokenizeHandlesNothingToSplit() {
+        assertTrue(TextIndex.tokenize(null).isEmpty());
+        assertTrue(TextIndex.tokenize("").isEmpty());
+        assertTrue(TextIndex.tokenize(" ,.!? ").isEmpty());
+    }
+
+    @Test
+    void queriesThatMatchNothingAreEmpty() {
+        TextIndex index = new TextIndex();
+        assertTrue(index.search("anything").isEmpty());
+
+        index.add(1, "Weekend", "Went hiking");
+        assertTrue(index.search("swimming").isEmpty());
+        assertTrue(index.search("the and of").isEmpty());
+        assertTrue(index.search("").isEmpty());
+        assertTrue(index.search(null).isEmpty());
+    }
+}
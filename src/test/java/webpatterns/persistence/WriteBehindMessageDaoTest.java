@@ -0,0 +1,153 @@
+package webpatterns.persistence;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import webpatterns.model.Message;
+
+import java.lang.reflect.Proxy;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Checks WriteBehindMessageDao's queue against a fake delegate: what is
+ * queued, what reads see before a flush, and that nothing is lost when a
+ * flush fails. The periodic flush is set far in the future, so flushes only
+ * happen when a test asks for one.
+ */
+class WriteBehindMessageDaoTest {
+    private final Map<Integer, Message> messages = new HashMap<>();
+    // Ids passed to each markMessagesAsRead call, in order
+    private final List<Collection<Integer>> batches = new ArrayList<>();
+    private final AtomicInteger directWrites = new AtomicInteger();
+    private boolean databaseDown;
+    private WriteBehindMessageDao dao;
+
+    @AfterEach
+    void tearDown() {
+        databaseDown = false;
+        dao.close();
+    }
+
+    @Test
+    void queuedReadIsShownAsReadAndWrittenOnFlush() {
+        dao = writeBehind(10);
+        addMessage(1, "Bob");
+
+        assertTrue(dao.markMessageAsRead(1, "bob"));
+        assertTrue(batches.isEmpty());
+        assertTrue(dao.getMessageById(1).isReadStatus());
+
+        assertEquals(1, dao.flush());
+        assertEquals(List.of(List.of(1)), batches);
+        assertEquals(0, dao.getPendingCount());
+    }
+
+    @Test
+    void queuedReadIsTakenOffTheUnreadCount() {
+        dao = writeBehind(10);
+        addMessage(1, "Bob");
+        addMessage(2, "Bob");
+
+        dao.markMessageAsRead(1, "Bob");
+
+        assertEquals(1, dao.getUnreadCount("bob"));
+    }
+
+    @Test
+    void markingTheSameMessageTwiceQueuesOneUpdate() {
+        dao = writeBehind(10);
+        addMessage(1, "Bob");
+
+        dao.markMessageAsRead(1, "Bob");
+        dao.markMessageAsRead(1, "Bob");
+
+        assertEquals(1, dao.getPendingCount());
+    }
+
+    @Test
+    void wrongRecipientOrMissingMessageIsRejected() {
+        dao = writeBehind(10);
+        addMessage(1, "Bob");
+
+        assertFalse(dao.markMessageAsRead(1, "Mallory"));
+        assertFalse(dao.markMessageAsRead(2, "Bob"));
+        assertTrue(dao.markMessageAsRead(1, "Bob"));
+
+        dao.flush();
+        assertEquals(List.of(List.of(1)), batches);
+    }
+
+    @Test
+    void failedFlushKeepsUpdatesQueued() {
+        dao = writeBehind(10);
+        addMessage(1, "Bob");
+        dao.markMessageAsRead(1, "Bob");
+
+        databaseDown = true;
+        assertEquals(0, dao.flush());
+        assertEquals(1, dao.getPendingCount());
+        assertTrue(dao.getMessageById(1).isReadStatus());
+
+        databaseDown = false;
+        assertEquals(1, dao.flush());
+        assertEquals(0, dao.getPendingCount());
+    }
+
+    @Test
+    void fullQueueWritesStraightThrough() {
+        dao = writeBehind(1);
+        addMessage(1, "Bob");
+        addMessage(2, "Bob");
+
+        assertTrue(dao.markMessageAsRead(1, "Bob"));
+        assertTrue(dao.markMessageAsRead(2, "Bob"));
+        assertEquals(1, directWrites.get());
+
+        // Filling the queue also starts a flush, which may already have written message 1
+        dao.flush();
+        assertEquals(List.of(List.of(1)), batches);
+    }
+
+    private WriteBehindMessageDao writeBehind(int maxPending) {
+        return new WriteBehindMessageDao(fakeDelegate(), maxPending, 1000, 1, TimeUnit.HOURS);
+    }
+
+    private void addMessage(int id, String recipient) {
+        messages.put(id, new Message(id, "Alice", recipient, "Subject", "Body", false, false, false,
+                LocalDateTime.now()));
+    }
+
+    // Implements only the MessageDao methods the write-behind DAO uses
+    private MessageDao fakeDelegate() {
+        return (MessageDao) Proxy.newProxyInstance(getClass().getClassLoader(), new Class<?>[]{MessageDao.class},
+                (proxy, method, args) -> switch (method.getName()) {
+                    case "getMessageById" -> messages.get((Integer) args[0]);
+                    // Nothing is written before a flush, so every message is still unread
+                    case "getUnreadCount" -> messages.size();
+                    case "markMessageAsRead" -> {
+                        directWrites.incrementAndGet();
+                        yield true;
+                    }
+                    case "markMessagesAsRead" -> {
+                        if (databaseDown) {
+                            yield -1;
+                        }
+                        @SuppressWarnings("unchecked")
+                        Collection<Integer> ids = (Collection<Integer>) args[0];
+                        batches.add(List.copyOf(ids));
+                        yield ids.size();
+                    }
+                    default -> throw new UnsupportedOperationException(method.getName());
+                });
+    }
+}